@@ -3,6 +3,8 @@ const morgan = require('morgan')
 const bodyParser = require('body-parser')
 const HttpStatus = require('http-status-codes');
 const bcrypt = require('bcrypt');
+const crypto = require('crypto');
+const zlib = require('zlib');
 
 
 // Settings
@@ -30,6 +32,96 @@ app.use(morgan('dev', {
 app.use(bodyParser.json({ type: 'application/json' }));
 
 
+// CBOR encoding of JSON values (RFC 7049), enough for user details
+
+function cborHead(major, length) {
+  if(length < 24) {
+    return Buffer.from([major << 5 | length]);
+  }
+  if(length < 0x100) {
+    return Buffer.from([major << 5 | 24, length]);
+  }
+
+  const head = Buffer.alloc(length < 0x10000 ? 3 : 5);
+  head[0] = major << 5 | (length < 0x10000 ? 25 : 26);
+  if(length < 0x10000) {
+    head.writeUInt16BE(length, 1);
+  }
+  else {
+    head.writeUInt32BE(length, 1);
+  }
+  return head;
+}
+
+function encodeCbor(value) {
+  if(value === null || value === undefined) {
+    return Buffer.from([0xf6]);
+  }
+  if(typeof value === 'boolean') {
+    return Buffer.from([value ? 0xf5 : 0xf4]);
+  }
+  if(typeof value === 'number') {
+    if(Number.isInteger(value) && Math.abs(value) <= 0xffffffff) {
+      return value >= 0 ? cborHead(0, value) : cborHead(1, -1 - value);
+    }
+    const double = Buffer.alloc(9);
+    double[0] = 0xfb;
+    double.writeDoubleBE(value, 1);
+    return double;
+  }
+  if(typeof value === 'string') {
+    const text = Buffer.from(value, 'utf8');
+    return Buffer.concat([cborHead(3, text.length), text]);
+  }
+  if(Array.isArray(value)) {
+    return Buffer.concat([cborHead(4, value.length)].concat(value.map(encodeCbor)));
+  }
+
+  const keys = Object.keys(value).filter(key => value[key] !== undefined);
+  const entries = [];
+  keys.forEach(key => entries.push(encodeCbor(key), encodeCbor(value[key])));
+  return Buffer.concat([cborHead(5, keys.length)].concat(entries));
+}
+
+
+// Send JSON, or CBOR if the client prefers it, gzipped if the client accepts it
+
+function sendBody(req, res, body) {
+  let payload;
+  if(req.accepts(['application/json', 'application/cbor']) === 'application/cbor') {
+    res.type('application/cbor');
+    payload = encodeCbor(body);
+  }
+  else {
+    res.type('application/json');
+    payload = Buffer.from(JSON.stringify(body), 'utf8');
+  }
+
+  res.vary('Accept-Encoding');
+  if(req.acceptsEncodings('gzip')) {
+    res.set('Content-Encoding', 'gzip');
+    payload = zlib.gzipSync(payload);
+  }
+  res.send(payload);
+}
+
+
+// Version of a user, changing whenever any of its details change
+
+function withVersion(user) {
+  user = Object.assign({}, user);
+  delete user.passwordHash;
+  delete user.version;
+
+  user.version = crypto.createHash('sha1')
+  .update(JSON.stringify(user))
+  .digest('hex')
+  .substring(0, 16);
+
+  return user;
+}
+
+
 // Routes
 
 app.get('/', (req, res) => {
@@ -38,6 +130,50 @@ app.get('/', (req, res) => {
 });
 
 
+// searchUsers / countUsers
+
+function searchUsers(search) {
+  const term = (search || '').toLowerCase();
+
+  return users
+  .filter(user => !term || [user.username, user.email, user.firstName, user.lastName]
+    .some(value => value && value.toLowerCase().includes(term)))
+  .sort((a, b) => a.username.localeCompare(b.username));
+}
+
+app.head(`${ url_prefix }/api/users/`, (req, res) => {
+  res.set('X-Total-Count', String(searchUsers(req.query.search).length))
+  .status(HttpStatus.OK)
+  .end();
+});
+
+app.get(`${ url_prefix }/api/users/`, (req, res) => {
+  const first = parseInt(req.query.first, 10) || 0;
+  const max = parseInt(req.query.max, 10) || 100;
+
+  const page = searchUsers(req.query.search)
+  .slice(first, first + max)
+  .map(withVersion);
+
+  res.status(HttpStatus.OK);
+  sendBody(req, res, page);
+});
+
+
+// getUserDetailsBatch (before the :username routes, which would match it too)
+
+app.post(`${ url_prefix }/api/users/_batch/`, (req, res) => {
+  const usernames = Array.isArray(req.body) ? req.body : [];
+
+  const found = usernames
+  .filter(username => userMap[username])
+  .map(username => withVersion(userMap[username]));
+
+  res.status(HttpStatus.OK);
+  sendBody(req, res, found);
+});
+
+
 // validateUserExists
 
 app.head(`${ url_prefix }/api/users/:username/`, (req, res) => {
@@ -52,22 +188,29 @@ app.head(`${ url_prefix }/api/users/:username/`, (req, res) => {
 });
 
 
-// getUserDetails
+// getUserDetails / getUserDetailsIfChanged
 
 app.get(`${ url_prefix }/api/users/:username/`, (req, res) => {
   const username = req.params.username;
   let user = userMap[username];
-  user = Object.assign({}, user);
 
-  delete user.passwordHash;
-  
   if(user) {
-    res.status(HttpStatus.OK)
-    .json(user);
+    user = withVersion(user);
+    const etag = `"${ user.version }"`;
+    res.set('ETag', etag);
+
+    if(req.get('If-None-Match') === etag) {
+      res.status(HttpStatus.NOT_MODIFIED)
+      .end();
+      return;
+    }
+
+    res.status(HttpStatus.OK);
+    sendBody(req, res, user);
   }
   else {
-    res.status(HttpStatus.NO_CONTENT)
-    .send(HttpStatus.getStatusText(HttpStatus.NO_CONTENT));  
+    res.status(HttpStatus.NOT_FOUND)
+    .send(HttpStatus.getStatusText(HttpStatus.NOT_FOUND));  
   }
 });
 
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.jboss.logging.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends lines to a size-rotated local file from a single background thread.
+ *
+ * Callers only enqueue; formatting, writing and flushing happen in batches on
+ * the writer thread. When the bounded queue is full, new lines are dropped and
+ * counted rather than blocking the caller; so are batches that fail to write.
+ *
+ * An appender shared by several components is {@link #retain() retained} by
+ * each of them and closed when the last one {@link #release() releases} it.
+ */
+public class AsyncFileAppender {
+
+    private static final Logger LOG = Logger.getLogger(AsyncFileAppender.class);
+
+    static final int DEFAULT_QUEUE_CAPACITY = 8192;
+    static final int BATCH_SIZE = 256;
+
+    /**
+     * Something that can be rendered as a single line, off the caller's thread.
+     */
+    public interface Line {
+        String toLine();
+    }
+
+    private final File file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final BlockingQueue<Line> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writerThread;
+    private volatile boolean closed;
+    private int users;
+
+    private OutputStream out;
+    private long written;
+
+    /**
+     * @param path     file to append to
+     * @param maxBytes size at which the file is rotated, or 0 to never rotate
+     * @param maxFiles number of rotated files to keep
+     */
+    public AsyncFileAppender(String path, long maxBytes, int maxFiles) {
+        this(path, maxBytes, maxFiles, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    AsyncFileAppender(String path, long maxBytes, int maxFiles, int queueCapacity) {
+        this.file = new File(path);
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainUntilClosed();
+            }
+        }, "user-migration-appender-" + file.getName());
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Queues a line for writing. Returns false if it was dropped.
+     */
+    public boolean append(Line line) {
+        if (closed || !queue.offer(line)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Marks the appender as used by one more component. Returns false if it
+     * was closed meanwhile and must not be used any more.
+     */
+    public synchronized boolean retain() {
+        if (closed) return false;
+
+        users++;
+        return true;
+    }
+
+    /**
+     * Ends a use begun by {@link #retain()}, closing the appender once nobody uses it.
+     */
+    public void release() {
+        synchronized (this) {
+            if (users == 0 || --users > 0) return;
+            // nobody may retain it from here on
+            closed = true;
+        }
+        close();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops accepting lines, writes whatever is queued and closes the file.
+     */
+    public void close() {
+        closed = true;
+        writerThread.interrupt();
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainUntilClosed() {
+        List<Line> batch = new ArrayList<>(BATCH_SIZE);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Line first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) continue;
+                batch.add(first);
+            } catch (InterruptedException ex) {
+                // close() wakes us up; loop condition decides whether to stop
+            }
+            queue.drainTo(batch, BATCH_SIZE - batch.size());
+            write(batch);
+            batch.clear();
+        }
+        closeWriter();
+
+        long lost = dropped.get();
+        if (lost > 0) LOG.warnf("%d lines for %s were dropped because the queue was full or writing failed", lost, file);
+    }
+
+    private void write(List<Line> batch) {
+        if (batch.isEmpty()) return;
+
+        try {
+            for (Line line : batch) {
+                // sizes are counted in encoded bytes, as the rotation threshold is
+                byte[] bytes = (line.toLine() + '\n').getBytes(StandardCharsets.UTF_8);
+                if (maxBytes > 0 && written > 0 && written + bytes.length > maxBytes) rotate();
+                if (out == null) openWriter();
+                out.write(bytes);
+                written += bytes.length;
+            }
+            out.flush();
+        } catch (IOException | RuntimeException ex) {
+            // whatever was buffered is gone with the stream, so count the whole batch as lost
+            dropped.addAndGet(batch.size());
+            LOG.warnf("Unable to write %d lines to %s: %s", batch.size(), file, ex.getMessage());
+            closeWriter();
+        }
+    }
+
+    private void openWriter() throws IOException {
+        out = new BufferedOutputStream(new FileOutputStream(file, true));
+        written = file.length();
+    }
+
+    private void rotate() {
+        closeWriter();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File source = new File(file.getPath() + "." + i);
+            if (source.exists()) renameTo(source, new File(file.getPath() + "." + (i + 1)));
+        }
+        if (maxFiles > 0) {
+            renameTo(file, new File(file.getPath() + ".1"));
+        } else if (!file.delete()) {
+            LOG.warnf("Unable to truncate %s", file);
+        }
+        written = 0;
+    }
+
+    private static void renameTo(File source, File target) {
+        if (target.exists() && !target.delete() || !source.renameTo(target)) {
+            LOG.warnf("Unable to rotate %s to %s", source, target);
+        }
+    }
+
+    private void closeWriter() {
+        if (out == null) return;
+
+        try {
+            out.close();
+        } catch (IOException ex) {
+            LOG.debugf(ex, "Unable to close %s", file);
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import com.smartling.keycloak.federation.FederatedUserService;
+import com.smartling.keycloak.federation.UserCredentialsDto;
+
+import java.lang.annotation.Annotation;
+import java.net.URI;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Link;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+
+/**
+ * Makes every call of one component wait for its turn in the budget of the
+ * legacy host it goes to. A call that cannot get a turn within the host's
+ * queue timeout fails as if the host answered 503.
+ *
+ * Calls returning an entity give their turn back once it is read. Calls
+ * returning a {@link Response} keep it until the response is closed, since
+ * the response holds on to its pooled connection until then.
+ */
+public class BudgetedFederatedUserService implements FederatedUserService {
+
+    private final FederatedUserService delegate;
+    private final LegacyHostBudget host;
+    private final String componentId;
+
+    public BudgetedFederatedUserService(FederatedUserService delegate, LegacyHostBudget host, String componentId) {
+        this.delegate = delegate;
+        this.host = host;
+        this.componentId = componentId;
+    }
+
+    @Override
+    public FederatedUserModel getUserDetails(String username) {
+        acquire();
+        try {
+            return delegate.getUserDetails(username);
+        } finally {
+            host.release(componentId);
+        }
+    }
+
+    @Override
+    public Response getUserDetailsIfChanged(String username, String version) {
+        acquire();
+        Response response = null;
+        try {
+            response = delegate.getUserDetailsIfChanged(username, version);
+            return releasedOnClose(response);
+        } finally {
+            if (response == null) host.release(componentId);
+        }
+    }
+
+    @Override
+    public List<FederatedUserModel> getUserDetailsBatch(List<String> usernames) {
+        acquire();
+        try {
+            return delegate.getUserDetailsBatch(usernames);
+        } finally {
+            host.release(componentId);
+        }
+    }
+
+    @Override
+    public Response validateUserExists(String username) {
+        acquire();
+        Response response = null;
+        try {
+            response = delegate.validateUserExists(username);
+            return releasedOnClose(response);
+        } finally {
+            if (response == null) host.release(componentId);
+        }
+    }
+
+    @Override
+    public Response validateLogin(String username, UserCredentialsDto passwordDto) {
+        acquire();
+        Response response = null;
+        try {
+            response = delegate.validateLogin(username, passwordDto);
+            return releasedOnClose(response);
+        } finally {
+            if (response == null) host.release(componentId);
+        }
+    }
+
+    @Override
+    public List<FederatedUserModel> searchUsers(String search, int first, int max) {
+        acquire();
+        try {
+            return delegate.searchUsers(search, first, max);
+        } finally {
+            host.release(componentId);
+        }
+    }
+
+    @Override
+    public Response countUsers(String search) {
+        acquire();
+        Response response = null;
+        try {
+            response = delegate.countUsers(search);
+            return releasedOnClose(response);
+        } finally {
+            if (response == null) host.release(componentId);
+        }
+    }
+
+    private void acquire() {
+        boolean acquired;
+        try {
+            acquired = host.acquire(componentId);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException("Interrupted waiting for a call to " + host, ex);
+        }
+        if (!acquired) throw new LegacyHostBudget.RejectedException("Too many concurrent calls to " + host);
+    }
+
+    private Response releasedOnClose(Response response) {
+        return response != null ? new ReleasingResponse(response) : null;
+    }
+
+    /**
+     * Response giving the call's turn back to the host when it is closed, however often.
+     */
+    private class ReleasingResponse extends Response {
+        private final Response response;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        ReleasingResponse(Response response) {
+            this.response = response;
+        }
+
+        @Override
+        public void close() {
+            try {
+                response.close();
+            } finally {
+                if (released.compareAndSet(false, true)) host.release(componentId);
+            }
+        }
+
+        @Override
+        public int getStatus() {
+            return response.getStatus();
+        }
+
+        @Override
+        public StatusType getStatusInfo() {
+            return response.getStatusInfo();
+        }
+
+        @Override
+        public Object getEntity() {
+            return response.getEntity();
+        }
+
+        @Override
+        public <T> T readEntity(Class<T> entityType) {
+            return response.readEntity(entityType);
+        }
+
+        @Override
+        public <T> T readEntity(GenericType<T> entityType) {
+            return response.readEntity(entityType);
+        }
+
+        @Override
+        public <T> T readEntity(Class<T> entityType, Annotation[] annotations) {
+            return response.readEntity(entityType, annotations);
+        }
+
+        @Override
+        public <T> T readEntity(GenericType<T> entityType, Annotation[] annotations) {
+            return response.readEntity(entityType, annotations);
+        }
+
+        @Override
+        public boolean hasEntity() {
+            return response.hasEntity();
+        }
+
+        @Override
+        public boolean bufferEntity() {
+            return response.bufferEntity();
+        }
+
+        @Override
+        public MediaType getMediaType() {
+            return response.getMediaType();
+        }
+
+        @Override
+        public Locale getLanguage() {
+            return response.getLanguage();
+        }
+
+        @Override
+        public int getLength() {
+            return response.getLength();
+        }
+
+        @Override
+        public Set<String> getAllowedMethods() {
+            return response.getAllowedMethods();
+        }
+
+        @Override
+        public Map<String, NewCookie> getCookies() {
+            return response.getCookies();
+        }
+
+        @Override
+        public EntityTag getEntityTag() {
+            return response.getEntityTag();
+        }
+
+        @Override
+        public Date getDate() {
+            return response.getDate();
+        }
+
+        @Override
+        public Date getLastModified() {
+            return response.getLastModified();
+        }
+
+        @Override
+        public URI getLocation() {
+            return response.getLocation();
+        }
+
+        @Override
+        public Set<Link> getLinks() {
+            return response.getLinks();
+        }
+
+        @Override
+        public boolean hasLink(String relation) {
+            return response.hasLink(relation);
+        }
+
+        @Override
+        public Link getLink(String relation) {
+            return response.getLink(relation);
+        }
+
+        @Override
+        public Link.Builder getLinkBuilder(String relation) {
+            return response.getLinkBuilder(relation);
+        }
+
+        @Override
+        public MultivaluedMap<String, Object> getMetadata() {
+            return response.getMetadata();
+        }
+
+        @Override
+        public MultivaluedMap<String, String> getStringHeaders() {
+            return response.getStringHeaders();
+        }
+
+        @Override
+        public String getHeaderString(String name) {
+            return response.getHeaderString(name);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.smartling.keycloak.federation.FederatedUserService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+
+/**
+ * Reads CBOR encoded legacy API responses into the same models as JSON.
+ */
+@Consumes(FederatedUserService.APPLICATION_CBOR)
+public class CborMessageBodyReader implements MessageBodyReader<Object> {
+
+    private static final MediaType CBOR = MediaType.valueOf(FederatedUserService.APPLICATION_CBOR);
+
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return CBOR.isCompatible(mediaType);
+    }
+
+    @Override
+    public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                           MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+        return mapper.readValue(entityStream, mapper.getTypeFactory().constructType(genericType != null ? genericType : type));
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserService;
+import org.jboss.logging.Logger;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.jboss.resteasy.plugins.interceptors.encoding.AcceptEncodingGZIPFilter;
+import org.jboss.resteasy.plugins.interceptors.encoding.GZIPDecodingInterceptor;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.ws.rs.core.Response;
+
+/**
+ * Long-lived collaborators shared by every provider instance created for one
+ * component. Providers live for a single Keycloak session; these outlive them.
+ *
+ * Providers created by the factory {@link #retain() retain} the resources for
+ * the length of their session, so that resources replaced after a configuration
+ * change or dropped with their component are only closed once the last session
+ * still using them is over. Standalone resources a provider builds for itself
+ * are closed with that provider.
+ */
+public class ComponentResources {
+
+    private static final Logger LOG = Logger.getLogger(ComponentResources.class);
+
+    /**
+     * Username looked up to open connections during warm-up; the legacy API
+     * is expected to answer 404 for it.
+     */
+    static final String WARM_UP_USERNAME = "keycloak-warm-up";
+
+    private final MultivaluedHashMap<String, String> configSnapshot;
+    private final RemoteUserFederationProviderConfig config;
+    private final Map<String, String> backendUris;
+    private final Tracer tracer;
+    private final MigrationAuditLog auditLog;
+    private final SearchCountCache searchCounts;
+    private final RefreshSchedule refreshSchedule;
+    private final ConnectionLeases connectionLeases;
+    private final MigrationProgress migrationProgress;
+    private final ResourceBudget budget;
+    private final String componentId;
+
+    private final List<ResteasyClient> clients = new ArrayList<>();
+    private final List<LegacyHostBudget> hosts = new ArrayList<>();
+    private ExecutorService fanOutExecutor;
+    private FederatedUserService federatedUserService;
+    private int users;
+    private boolean retired;
+    private boolean closed;
+
+    public ComponentResources(ComponentModel model, Tracer tracer, MigrationAuditLog auditLog) {
+        this(model, tracer, auditLog, new MigrationProgress(model != null ? model.getId() : null));
+    }
+
+    public ComponentResources(ComponentModel model, Tracer tracer, MigrationAuditLog auditLog, MigrationProgress migrationProgress) {
+        this(model, tracer, auditLog, migrationProgress, null);
+    }
+
+    /**
+     * Resources drawing connections, concurrent calls and fan-out threads from the given
+     * factory-wide budget; without one, the component gets a pool and threads of its own.
+     */
+    public ComponentResources(ComponentModel model, Tracer tracer, MigrationAuditLog auditLog, MigrationProgress migrationProgress,
+                              ResourceBudget budget) {
+        this(model, new RemoteUserFederationProviderConfig(model).getBackends(), tracer, auditLog, migrationProgress, budget);
+    }
+
+    private ComponentResources(ComponentModel model, Map<String, String> backendUris, Tracer tracer, MigrationAuditLog auditLog,
+                               MigrationProgress migrationProgress, ResourceBudget budget) {
+        this.configSnapshot = snapshot(model);
+        this.config = new RemoteUserFederationProviderConfig(model);
+        this.backendUris = backendUris;
+        this.tracer = tracer;
+        this.auditLog = auditLog;
+        this.searchCounts = new SearchCountCache(config.getSearchCountTtl());
+        this.refreshSchedule = new RefreshSchedule(config.getRefreshInterval());
+        this.connectionLeases = new ConnectionLeases(model != null ? model.getId() : null);
+        this.migrationProgress = migrationProgress;
+        this.budget = budget;
+        this.componentId = model != null ? model.getId() : null;
+    }
+
+    /**
+     * Resources for a provider created outside of the factory: no tracing and no auditing.
+     */
+    public static ComponentResources standalone(ComponentModel model) {
+        return new ComponentResources(model, Tracer.DISABLED, MigrationAuditLog.DISABLED);
+    }
+
+    /**
+     * Resources for a provider created outside of the factory, talking to the given URI.
+     */
+    public static ComponentResources standalone(ComponentModel model, String baseUri) {
+        return new ComponentResources(model, Collections.singletonMap(RemoteUserFederationProviderConfig.DEFAULT_BACKEND, baseUri),
+                Tracer.DISABLED, MigrationAuditLog.DISABLED, new MigrationProgress(model != null ? model.getId() : null), null);
+    }
+
+    /**
+     * Returns true if these resources were built from the component's current configuration.
+     */
+    public boolean isConfiguredBy(ComponentModel model) {
+        return configSnapshot.equals(snapshot(model));
+    }
+
+    public RemoteUserFederationProviderConfig getConfig() {
+        return config;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    public MigrationAuditLog getAuditLog() {
+        return auditLog;
+    }
+
+    public SearchCountCache getSearchCounts() {
+        return searchCounts;
+    }
+
+    public RefreshSchedule getRefreshSchedule() {
+        return refreshSchedule;
+    }
+
+    public ConnectionLeases getConnectionLeases() {
+        return connectionLeases;
+    }
+
+    public MigrationProgress getMigrationProgress() {
+        return migrationProgress;
+    }
+
+    /**
+     * Returns the legacy API client, building it and its connection pool on first use.
+     * A component with several backends gets a client that queries all of them in parallel.
+     */
+    public synchronized FederatedUserService getFederatedUserService() {
+        if (federatedUserService == null) {
+            if (backendUris.isEmpty()) throw new IllegalStateException("No legacy API base URI configured");
+            LOG.debugf("Using validation base URIs: %s", backendUris);
+
+            int poolSize = config.getConnectionPoolSize();
+            ResteasyClient client = budget == null
+                    ? buildClient(new ResteasyClientBuilder()
+                            .disableTrustManager()
+                            .connectionPoolSize(poolSize * backendUris.size())
+                            .maxPooledPerRoute(poolSize))
+                    : null;
+
+            Map<String, FederatedUserService> backends = new LinkedHashMap<>();
+            for (Map.Entry<String, String> backend : backendUris.entrySet()) {
+                FederatedUserService service;
+                if (budget == null) {
+                    service = proxy(client, backend.getValue());
+                } else {
+                    // the host's pool and calls are shared with every other component using it
+                    LegacyHostBudget host = budget.getHost(backend.getValue());
+                    host.register(componentId, poolSize);
+                    hosts.add(host);
+                    ResteasyClient hostClient = buildClient(new ResteasyClientBuilder().httpEngine(host.newHttpEngine()));
+                    service = new BudgetedFederatedUserService(proxy(hostClient, backend.getValue()), host, componentId);
+                }
+                if (config.getMaxRetries() > 0) {
+                    // each backend has its own budget so that one failing directory cannot spend the others'
+                    service = new RetryingFederatedUserService(service, new RetryBudget(config.getRetryBudget()),
+                            config.getMaxRetries(), config.getRetryBaseDelay(), config.getRetryMaxDelay());
+                }
+                backends.put(backend.getKey(), service);
+            }
+
+            if (backends.size() == 1) {
+                federatedUserService = backends.values().iterator().next();
+            } else if (budget != null) {
+                federatedUserService = new CompositeFederatedUserService(backends, budget.getFanOutExecutor(), tracer, searchCounts);
+            } else {
+                fanOutExecutor = Executors.newFixedThreadPool(poolSize * backends.size(), new ResourceBudget.FanOutThreadFactory());
+                federatedUserService = new CompositeFederatedUserService(backends, fanOutExecutor, tracer, searchCounts);
+            }
+        }
+        return federatedUserService;
+    }
+
+    private ResteasyClient buildClient(ResteasyClientBuilder builder) {
+        if (tracer.isEnabled()) builder.register(new TraceContextFilter(tracer));
+        if (config.isCompressionEnabled()) {
+            builder.register(AcceptEncodingGZIPFilter.class).register(GZIPDecodingInterceptor.class);
+        }
+        if (config.isCborEnabled()) {
+            builder.register(new PayloadNegotiationFilter()).register(new CborMessageBodyReader());
+        }
+
+        ResteasyClient client = builder.build();
+        clients.add(client);
+        connectionLeases.monitor(client);
+        return client;
+    }
+
+    private static FederatedUserService proxy(ResteasyClient client, String uri) {
+        return client.target(uri)
+                .proxyBuilder(FederatedUserService.class)
+                .classloader(FederatedUserService.class.getClassLoader())
+                .build();
+    }
+
+    /**
+     * Builds the client and opens up to {@code connections} pooled connections to
+     * the legacy API by issuing that many concurrent lookups, so DNS resolution,
+     * TLS handshakes and proxy generation happen before the first login.
+     *
+     * @return the number of lookups that completed
+     */
+    public int warmUp(int connections, long timeout, TimeUnit unit) {
+        final FederatedUserService service = getFederatedUserService();
+        int count = Math.max(1, Math.min(connections, config.getConnectionPoolSize()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            List<Future<?>> lookups = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                lookups.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        service.validateUserExists(WARM_UP_USERNAME).close();
+                    }
+                }));
+            }
+
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            int completed = 0;
+            for (Future<?> lookup : lookups) {
+                try {
+                    lookup.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    completed++;
+                } catch (ExecutionException ex) {
+                    LOG.warnf("Warm-up lookup against %s failed: %s", backendUris.values(), ex.getCause());
+                } catch (TimeoutException ex) {
+                    LOG.warnf("Warm-up lookup against %s timed out", backendUris.values());
+                    lookup.cancel(true);
+                }
+            }
+            return completed;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Marks the resources as used by one more provider. Returns false if they
+     * were retired meanwhile and must not be used any more.
+     */
+    public synchronized boolean retain() {
+        if (retired || closed) return false;
+
+        users++;
+        return true;
+    }
+
+    /**
+     * Ends a use begun by {@link #retain()}, closing retired resources once
+     * nobody uses them.
+     */
+    public synchronized void release() {
+        if (users > 0) users--;
+        if (retired && users == 0) close();
+    }
+
+    /**
+     * Takes the resources out of service: they are closed as soon as no
+     * provider uses them.
+     */
+    public synchronized void retire() {
+        retired = true;
+        if (users == 0) close();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized void close() {
+        if (closed) return;
+
+        closed = true;
+        auditLog.close();
+        if (fanOutExecutor != null) fanOutExecutor.shutdownNow();
+        for (ResteasyClient client : clients) {
+            client.close();
+        }
+        for (LegacyHostBudget host : hosts) {
+            host.unregister(componentId);
+        }
+        connectionLeases.close();
+        fanOutExecutor = null;
+        clients.clear();
+        hosts.clear();
+        federatedUserService = null;
+    }
+
+    private static MultivaluedHashMap<String, String> snapshot(ComponentModel model) {
+        MultivaluedHashMap<String, String> config = model != null ? model.getConfig() : null;
+        return config != null ? new MultivaluedHashMap<>(config) : new MultivaluedHashMap<String, String>();
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import com.smartling.keycloak.federation.FederatedUserService;
+import com.smartling.keycloak.federation.UserCredentialsDto;
+import org.apache.http.HttpStatus;
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+/**
+ * Looks users up in several named legacy directories at once.
+ *
+ * Every lookup is sent to all backends in parallel, so a login waits for the
+ * slowest directory rather than for all of them in turn. Backends are ordered
+ * by precedence: the answer of the first backend that knows the user wins,
+ * but only once every backend before it has reported that it does not or has
+ * failed with a 5xx or a connection error. A lookup only fails if no backend
+ * knows the user and one of them failed.
+ *
+ * Passwords are only ever sent to the backend that owns the user, i.e. the
+ * one that last answered a lookup with a 2xx. Calls run
+ * on the executor's threads within the caller's current span, so that they
+ * carry its trace context to every backend.
+ */
+public class CompositeFederatedUserService implements FederatedUserService {
+
+    private static final Logger LOG = Logger.getLogger(CompositeFederatedUserService.class);
+
+    static final int MAX_OWNERS = 10000;
+
+    private final List<String> names;
+    private final List<FederatedUserService> backends;
+    private final ExecutorService executor;
+    private final Tracer tracer;
+    private final SearchCountCache searchCounts;
+
+    // Backend that most recently answered for a user, so logins skip another fan-out
+    private final Map<String, Integer> owners = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_OWNERS;
+        }
+    };
+
+    /**
+     * @param backends legacy user services by name, in order of precedence
+     * @param executor executor the calls to each backend run on
+     */
+    public CompositeFederatedUserService(Map<String, FederatedUserService> backends, ExecutorService executor) {
+        this(backends, executor, Tracer.DISABLED);
+    }
+
+    /**
+     * @param backends legacy user services by name, in order of precedence
+     * @param executor executor the calls to each backend run on
+     * @param tracer   tracer whose current span the calls run within
+     */
+    public CompositeFederatedUserService(Map<String, FederatedUserService> backends, ExecutorService executor, Tracer tracer) {
+        this(backends, executor, tracer, new SearchCountCache(0));
+    }
+
+    /**
+     * @param backends     legacy user services by name, in order of precedence
+     * @param executor     executor the calls to each backend run on
+     * @param tracer       tracer whose current span the calls run within
+     * @param searchCounts cache of each backend's user counts, shared by the pages of a search
+     */
+    public CompositeFederatedUserService(Map<String, FederatedUserService> backends, ExecutorService executor, Tracer tracer,
+                                         SearchCountCache searchCounts) {
+        if (backends.isEmpty()) throw new IllegalArgumentException("No legacy backends configured");
+
+        this.names = new ArrayList<>(backends.keySet());
+        this.backends = new ArrayList<>(backends.values());
+        this.executor = executor;
+        this.tracer = tracer;
+        this.searchCounts = searchCounts;
+    }
+
+    @Override
+    public FederatedUserModel getUserDetails(final String username) {
+        FederatedUserModel user = first(username, new Lookup<FederatedUserModel>() {
+            @Override
+            public FederatedUserModel call(FederatedUserService backend) {
+                try {
+                    return backend.getUserDetails(username);
+                } catch (NotFoundException ex) {
+                    return null;
+                }
+            }
+        });
+
+        if (user == null) throw new NotFoundException();
+        return user;
+    }
+
+    @Override
+    public Response getUserDetailsIfChanged(final String username, final String version) {
+        return first(username, new ResponseLookup() {
+            @Override
+            public Response call(FederatedUserService backend) {
+                return backend.getUserDetailsIfChanged(username, version);
+            }
+        });
+    }
+
+    /*
+     * Every backend is asked for the whole batch in parallel; a user returned by more than
+     * one backend is taken from the first in order of precedence. Unlike single lookups,
+     * the owners of users missing from a failed backend cannot be told apart, so any
+     * failure fails the batch.
+     */
+    @Override
+    public List<FederatedUserModel> getUserDetailsBatch(final List<String> usernames) {
+        List<Future<List<FederatedUserModel>>> batches = new ArrayList<>(backends.size());
+        for (final FederatedUserService backend : backends) {
+            batches.add(executor.submit(tracer.propagate(new Callable<List<FederatedUserModel>>() {
+                @Override
+                public List<FederatedUserModel> call() {
+                    return backend.getUserDetailsBatch(usernames);
+                }
+            })));
+        }
+
+        Map<String, FederatedUserModel> users = new LinkedHashMap<>();
+        for (int i = 0; i < batches.size(); i++) {
+            List<FederatedUserModel> batch = await(batches.get(i));
+            if (batch == null) continue;
+
+            for (FederatedUserModel user : batch) {
+                String key = user.getEmail() != null ? user.getEmail().toLowerCase() : user.getUsername();
+                if (!users.containsKey(key)) {
+                    users.put(key, user);
+                    if (key != null) setOwner(key, i);
+                }
+            }
+        }
+        return new ArrayList<>(users.values());
+    }
+
+    @Override
+    public Response validateUserExists(final String username) {
+        return first(username, new ResponseLookup() {
+            @Override
+            public Response call(FederatedUserService backend) {
+                return backend.validateUserExists(username);
+            }
+        });
+    }
+
+    @Override
+    public Response validateLogin(String username, UserCredentialsDto passwordDto) {
+        Integer owner = getOwner(username);
+        if (owner == null) {
+            Response exists = validateUserExists(username);
+            owner = getOwner(username);
+            if (owner == null) return exists;
+            exists.close();
+        }
+        return backends.get(owner).validateLogin(username, passwordDto);
+    }
+
+    /*
+     * Results are concatenated in order of precedence: the first backend's users, then the
+     * second's and so on. Each backend's count is needed to place the requested window, so
+     * all counts are fetched in parallel first, unless cached by an earlier page, then every
+     * overlapping slice in parallel.
+     * Users listed by a backend with higher precedence in the same page are dropped.
+     */
+    @Override
+    public List<FederatedUserModel> searchUsers(final String search, int first, int max) {
+        final int[] counts = countAll(search);
+
+        List<Future<List<FederatedUserModel>>> slices = new ArrayList<>(backends.size());
+        int offset = 0;
+        int remaining = max;
+        for (int i = 0; i < backends.size(); i++) {
+            final FederatedUserService backend = backends.get(i);
+            final int sliceFirst = Math.max(0, first - offset);
+            final int sliceMax = Math.min(remaining, counts[i] - sliceFirst);
+            offset += counts[i];
+
+            if (sliceMax <= 0) {
+                slices.add(null);
+                continue;
+            }
+            remaining -= sliceMax;
+            slices.add(executor.submit(tracer.propagate(new Callable<List<FederatedUserModel>>() {
+                @Override
+                public List<FederatedUserModel> call() {
+                    return backend.searchUsers(search, sliceFirst, sliceMax);
+                }
+            })));
+        }
+
+        List<FederatedUserModel> users = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < slices.size(); i++) {
+            if (slices.get(i) == null) continue;
+
+            List<FederatedUserModel> slice = await(slices.get(i));
+            if (slice == null) continue;
+            for (FederatedUserModel user : slice) {
+                String key = user.getEmail() != null ? user.getEmail().toLowerCase() : user.getUsername();
+                if (key == null || seen.add(key)) users.add(user);
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public Response countUsers(String search) {
+        int total = 0;
+        for (int count : countAll(search)) total += count;
+        return Response.ok().header(TOTAL_COUNT_HEADER, String.valueOf(total)).build();
+    }
+
+    // A backend that cannot count contributes no users to searches, and is asked again next time
+    private int[] countAll(final String search) {
+        int[] counts = new int[backends.size()];
+        List<Future<Response>> responses = new ArrayList<>(backends.size());
+        for (int i = 0; i < backends.size(); i++) {
+            Integer cached = searchCounts.get(names.get(i), search);
+            if (cached != null) {
+                counts[i] = cached;
+                responses.add(null);
+                continue;
+            }
+
+            final FederatedUserService backend = backends.get(i);
+            responses.add(executor.submit(tracer.propagate(new Callable<Response>() {
+                @Override
+                public Response call() {
+                    return backend.countUsers(search);
+                }
+            })));
+        }
+
+        for (int i = 0; i < responses.size(); i++) {
+            if (responses.get(i) == null) continue;
+
+            Response response = null;
+            try {
+                response = await(responses.get(i));
+                String total = response.getHeaderString(TOTAL_COUNT_HEADER);
+                if (HttpStatus.SC_OK == response.getStatus() && total != null) {
+                    counts[i] = Integer.parseInt(total.trim());
+                    searchCounts.put(names.get(i), search, counts[i]);
+                }
+            } catch (RuntimeException ex) {
+                LOG.debugf("Unable to count users of legacy backend %s: %s", names.get(i), ex.getMessage());
+            } finally {
+                if (response != null) response.close();
+            }
+        }
+        return counts;
+    }
+
+    /*
+     * Asks every backend and returns the answer of the first one, in order of precedence,
+     * that neither reports the user as unknown nor fails. If none answers, the first failure
+     * is returned or thrown, or else the first miss. Answers that lose are released,
+     * including those that only arrive after the decision was made.
+     */
+    private <T> T first(String username, final Lookup<T> lookup) {
+        List<Call<T>> calls = new ArrayList<>(backends.size());
+        for (FederatedUserService backend : backends) {
+            Call<T> call = new Call<>(backend, lookup);
+            call.future = executor.submit(tracer.propagate(call));
+            calls.add(call);
+        }
+
+        T firstMiss = null;
+        T firstFailure = null;
+        RuntimeException failure = null;
+        int next = 0;
+        try {
+            while (next < calls.size()) {
+                int i = next++;
+                T result;
+                try {
+                    result = await(calls.get(i).future);
+                } catch (RuntimeException ex) {
+                    if (!isUnavailable(ex)) throw ex;
+                    LOG.debugf("Legacy backend %s failed to look up %s: %s", names.get(i), username, ex.getMessage());
+                    if (failure == null) failure = ex;
+                    continue;
+                }
+
+                if (lookup.isFailure(result)) {
+                    LOG.debugf("Legacy backend %s failed to look up %s", names.get(i), username);
+                    if (firstFailure == null) {
+                        firstFailure = result;
+                    } else {
+                        lookup.release(result);
+                    }
+                } else if (!lookup.isMiss(result)) {
+                    lookup.release(firstMiss);
+                    lookup.release(firstFailure);
+                    if (lookup.isOwner(result)) setOwner(username, i);
+                    LOG.tracef("Legacy backend %s answered for %s", names.get(i), username);
+                    return result;
+                } else if (firstMiss == null) {
+                    firstMiss = result;
+                } else {
+                    lookup.release(result);
+                }
+            }
+
+            if (firstFailure != null || failure != null) {
+                lookup.release(firstMiss);
+                if (firstFailure != null) return firstFailure;
+                throw failure;
+            }
+            return firstMiss;
+        } catch (RuntimeException ex) {
+            lookup.release(firstMiss);
+            lookup.release(firstFailure);
+            throw ex;
+        } finally {
+            for (int i = next; i < calls.size(); i++) calls.get(i).abandon();
+        }
+    }
+
+    // Connection errors and 5xx answers; the backend may know the user but cannot tell
+    private static boolean isUnavailable(RuntimeException ex) {
+        if (ex instanceof ProcessingException) return true;
+        return ex instanceof WebApplicationException
+                && ((WebApplicationException) ex).getResponse().getStatus() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    private Integer getOwner(String username) {
+        synchronized (owners) {
+            return owners.get(username);
+        }
+    }
+
+    private void setOwner(String username, int backend) {
+        synchronized (owners) {
+            owners.put(username, backend);
+        }
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for legacy backend", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            if (ex.getCause() instanceof Error) throw (Error) ex.getCause();
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    private abstract static class Lookup<T> {
+        abstract T call(FederatedUserService backend);
+
+        boolean isMiss(T result) {
+            return result == null;
+        }
+
+        boolean isFailure(T result) {
+            return false;
+        }
+
+        boolean isOwner(T result) {
+            return result != null;
+        }
+
+        void release(T result) {
+            // nothing to release
+        }
+    }
+
+    private abstract static class ResponseLookup extends Lookup<Response> {
+        @Override
+        boolean isMiss(Response response) {
+            return response.getStatus() == HttpStatus.SC_NOT_FOUND || response.getStatus() == HttpStatus.SC_GONE;
+        }
+
+        @Override
+        boolean isFailure(Response response) {
+            return response.getStatus() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+        }
+
+        @Override
+        boolean isOwner(Response response) {
+            return response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL;
+        }
+
+        @Override
+        void release(Response response) {
+            if (response != null) response.close();
+        }
+    }
+
+    /**
+     * Call to one backend whose answer is released if nobody is waiting for it anymore.
+     */
+    private static class Call<T> implements Callable<T> {
+        private final FederatedUserService backend;
+        private final Lookup<T> lookup;
+        private Future<T> future;
+        private T result;
+        private boolean done;
+        private boolean abandoned;
+
+        Call(FederatedUserService backend, Lookup<T> lookup) {
+            this.backend = backend;
+            this.lookup = lookup;
+        }
+
+        @Override
+        public T call() {
+            T result = lookup.call(backend);
+            synchronized (this) {
+                if (!abandoned) {
+                    this.result = result;
+                    this.done = true;
+                    return result;
+                }
+            }
+            lookup.release(result);
+            return result;
+        }
+
+        void abandon() {
+            T result;
+            synchronized (this) {
+                abandoned = true;
+                result = done ? this.result : null;
+            }
+            lookup.release(result);
+        }
+    }
+}
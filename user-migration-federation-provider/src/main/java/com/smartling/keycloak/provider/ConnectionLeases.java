@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.jboss.logging.Logger;
+import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.engines.ApacheHttpClient4Engine;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+
+/**
+ * Accounts for the connections of one component's legacy API clients.
+ *
+ * Connection counts come from the clients' pools, which are the pools of the
+ * legacy hosts when a {@link ResourceBudget} shares them across components;
+ * response counts are kept by
+ * {@link LeaseTrackingFederatedUserService}. A response that is never closed
+ * keeps its connection leased, so leaks are counted and logged, and the
+ * metrics are published as {@code com.smartling.keycloak:type=LegacyConnections}.
+ */
+@SuppressWarnings("deprecation") // RESTEasy 3.0 builds its pool with the HttpClient 4.2 API
+public class ConnectionLeases implements ConnectionLeasesMXBean {
+
+    private static final Logger LOG = Logger.getLogger(ConnectionLeases.class);
+
+    /**
+     * Once the first leak has been reported, only every this many further leaks are.
+     */
+    static final int LEAK_WARNING_INTERVAL = 100;
+
+    private final String componentId;
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+
+    private final List<PoolingClientConnectionManager> pools = new CopyOnWriteArrayList<>();
+    private ObjectName objectName;
+
+    public ConnectionLeases(String componentId) {
+        this.componentId = componentId;
+    }
+
+    /**
+     * Starts reading connection counts from the given client's pool, in addition to those
+     * already monitored, and publishes the metrics.
+     */
+    public synchronized void monitor(ResteasyClient client) {
+        ClientHttpEngine engine = client.httpEngine();
+        if (engine instanceof ApacheHttpClient4Engine) {
+            ClientConnectionManager connectionManager = ((ApacheHttpClient4Engine) engine).getHttpClient().getConnectionManager();
+            if (connectionManager instanceof PoolingClientConnectionManager && !pools.contains(connectionManager)) {
+                pools.add((PoolingClientConnectionManager) connectionManager);
+            }
+        }
+
+        if (objectName == null) objectName = ManagementSupport.register(this, "LegacyConnections", componentId);
+    }
+
+    /**
+     * Stops reading the pools and withdraws the metrics.
+     */
+    public synchronized void close() {
+        pools.clear();
+        ManagementSupport.unregister(objectName);
+        objectName = null;
+    }
+
+    void opened() {
+        opened.incrementAndGet();
+    }
+
+    void closed() {
+        closed.incrementAndGet();
+    }
+
+    void leaked(String operation) {
+        closed.incrementAndGet();
+        long leaks = leaked.incrementAndGet();
+        if (leaks == 1 || leaks % LEAK_WARNING_INTERVAL == 0) {
+            LOG.warnf("Response of legacy API call %s was not closed and kept its connection leased until the session ended "
+                    + "(%d leaks so far, pool: %s)", operation, leaks, this);
+        } else {
+            LOG.debugf("Response of legacy API call %s was not closed", operation);
+        }
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        PoolStats stats = stats();
+        return stats != null ? stats.getLeased() : 0;
+    }
+
+    @Override
+    public int getIdleConnections() {
+        PoolStats stats = stats();
+        return stats != null ? stats.getAvailable() : 0;
+    }
+
+    @Override
+    public int getPendingConnections() {
+        PoolStats stats = stats();
+        return stats != null ? stats.getPending() : 0;
+    }
+
+    @Override
+    public int getMaxConnections() {
+        PoolStats stats = stats();
+        return stats != null ? stats.getMax() : 0;
+    }
+
+    @Override
+    public long getOpenedResponses() {
+        return opened.get();
+    }
+
+    @Override
+    public long getClosedResponses() {
+        return closed.get();
+    }
+
+    @Override
+    public long getLeakedResponses() {
+        return leaked.get();
+    }
+
+    private PoolStats stats() {
+        if (pools.isEmpty()) return null;
+
+        int leased = 0, pending = 0, available = 0, max = 0;
+        for (PoolingClientConnectionManager pool : pools) {
+            PoolStats stats = pool.getTotalStats();
+            leased += stats.getLeased();
+            pending += stats.getPending();
+            available += stats.getAvailable();
+            max += stats.getMax();
+        }
+        return new PoolStats(leased, pending, available, max);
+    }
+
+    @Override
+    public String toString() {
+        PoolStats stats = stats();
+        return stats != null
+                ? String.format("%d leased, %d idle, %d pending, %d max", stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax())
+                : "unknown";
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+/**
+ * Connection pool and response lease metrics of one component's legacy API
+ * client, published over JMX.
+ */
+public interface ConnectionLeasesMXBean {
+
+    /**
+     * Connections currently leased from the pool, i.e. in use by a request or
+     * held by a response that has not been closed yet.
+     */
+    int getLeasedConnections();
+
+    /**
+     * Open connections waiting in the pool to be reused.
+     */
+    int getIdleConnections();
+
+    /**
+     * Requests waiting for a connection because the pool is exhausted.
+     */
+    int getPendingConnections();
+
+    int getMaxConnections();
+
+    long getOpenedResponses();
+
+    long getClosedResponses();
+
+    /**
+     * Responses the provider failed to close, reclaimed when its session ended.
+     */
+    long getLeakedResponses();
+}
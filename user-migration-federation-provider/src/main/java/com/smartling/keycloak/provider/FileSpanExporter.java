@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+/**
+ * Appends finished spans as JSON lines to a local file, suitable for
+ * ingestion by an OpenTelemetry collector's file log receiver.
+ */
+public class FileSpanExporter implements SpanExporter {
+
+    private final AsyncFileAppender appender;
+
+    public FileSpanExporter(AsyncFileAppender appender) {
+        this.appender = appender;
+    }
+
+    @Override
+    public void export(final Span span) {
+        appender.append(new AsyncFileAppender.Line() {
+            @Override
+            public String toLine() {
+                return span.toJson();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        // the appender may be shared; it is closed once nobody uses it
+        appender.release();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import org.infinispan.Cache;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup state kept in Keycloak's replicated work cache so that every node
+ * in a cluster shares not-found results, legacy user snapshots and
+ * in-progress migration markers.
+ *
+ * Snapshots are stored as serialized bytes rather than as objects so that
+ * remote nodes never need this module's classes to unmarshal cache entries.
+ */
+public class InfinispanUserLookupState implements UserLookupState {
+
+    private static final Logger LOG = Logger.getLogger(InfinispanUserLookupState.class);
+
+    private static final String KEY_PREFIX = "user-migration:";
+    private static final String NOT_FOUND = ":not-found:";
+    private static final String SNAPSHOT = ":snapshot:";
+    private static final String MIGRATING = ":migrating:";
+
+    private static final String NODE_ID = UUID.randomUUID().toString();
+
+    private final KeycloakSession session;
+    private final Cache<String, Serializable> cache;
+    private final String componentId;
+    private final RemoteUserFederationProviderConfig config;
+
+    public InfinispanUserLookupState(KeycloakSession session, String componentId, RemoteUserFederationProviderConfig config) {
+        this(session, session.getProvider(InfinispanConnectionProvider.class)
+                .<String, Serializable>getCache(InfinispanConnectionProvider.WORK_CACHE_NAME), componentId, config);
+    }
+
+    protected InfinispanUserLookupState(KeycloakSession session, Cache<String, Serializable> cache, String componentId, RemoteUserFederationProviderConfig config) {
+        this.session = session;
+        this.cache = cache;
+        this.componentId = componentId;
+        this.config = config;
+    }
+
+    @Override
+    public boolean isNotFound(String username) {
+        return cache.containsKey(key(NOT_FOUND, username));
+    }
+
+    @Override
+    public void markNotFound(String username) {
+        cache.put(key(NOT_FOUND, username), Boolean.TRUE, config.getNotFoundTtl(), TimeUnit.SECONDS);
+    }
+
+    @Override
+    public FederatedUserModel getSnapshot(String username) {
+        Serializable value = cache.get(key(SNAPSHOT, username));
+        if (!(value instanceof byte[])) return null;
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream((byte[]) value))) {
+            return (FederatedUserModel) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException ex) {
+            LOG.warnf("Discarding unreadable snapshot for %s: %s", username, ex.getMessage());
+            cache.remove(key(SNAPSHOT, username));
+            return null;
+        }
+    }
+
+    @Override
+    public void putSnapshot(String username, FederatedUserModel user) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(user);
+        } catch (IOException ex) {
+            LOG.warnf("Unable to share snapshot for %s: %s", username, ex.getMessage());
+            return;
+        }
+        cache.put(key(SNAPSHOT, username), bytes.toByteArray(), config.getSnapshotTtl(), TimeUnit.SECONDS);
+    }
+
+    @Override
+    public boolean tryBeginMigration(String username) {
+        final String key = key(MIGRATING, username);
+        if (cache.putIfAbsent(key, NODE_ID, config.getMigrationLockTtl(), TimeUnit.SECONDS) != null) {
+            return false;
+        }
+
+        session.getTransactionManager().enlistAfterCompletion(new ReleaseOnCompletion(key));
+        return true;
+    }
+
+    private String key(String type, String username) {
+        return KEY_PREFIX + componentId + type + username;
+    }
+
+    /**
+     * Drops the migration marker once the importing transaction is over,
+     * whether it committed or rolled back.
+     */
+    private class ReleaseOnCompletion implements KeycloakTransaction {
+        private final String key;
+        private boolean active;
+
+        ReleaseOnCompletion(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void begin() {
+            active = true;
+        }
+
+        @Override
+        public void commit() {
+            release();
+        }
+
+        @Override
+        public void rollback() {
+            release();
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            // no-op
+        }
+
+        @Override
+        public boolean getRollbackOnly() {
+            return false;
+        }
+
+        @Override
+        public boolean isActive() {
+            return active;
+        }
+
+        private void release() {
+            active = false;
+            cache.remove(key);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import com.smartling.keycloak.federation.FederatedUserService;
+import com.smartling.keycloak.federation.UserCredentialsDto;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.core.Response;
+
+/**
+ * Keeps track of the responses handed out to one provider instance.
+ *
+ * A response holds on to its pooled connection until it is closed. Callers
+ * close responses with {@link #release(Response)}; whatever is still open
+ * when the provider's session ends is closed by {@link #releaseAll()} and
+ * counted as a leak, so a missed close costs a connection for one session
+ * at most rather than for good.
+ */
+public class LeaseTrackingFederatedUserService implements FederatedUserService {
+
+    private final FederatedUserService delegate;
+    private final ConnectionLeases leases;
+    private final Map<Response, String> open = new IdentityHashMap<>();
+
+    public LeaseTrackingFederatedUserService(FederatedUserService delegate, ConnectionLeases leases) {
+        this.delegate = delegate;
+        this.leases = leases;
+    }
+
+    @Override
+    public FederatedUserModel getUserDetails(String username) {
+        return delegate.getUserDetails(username);
+    }
+
+    @Override
+    public Response getUserDetailsIfChanged(String username, String version) {
+        return lease("getUserDetailsIfChanged", delegate.getUserDetailsIfChanged(username, version));
+    }
+
+    @Override
+    public List<FederatedUserModel> getUserDetailsBatch(List<String> usernames) {
+        return delegate.getUserDetailsBatch(usernames);
+    }
+
+    @Override
+    public Response validateUserExists(String username) {
+        return lease("validateUserExists", delegate.validateUserExists(username));
+    }
+
+    @Override
+    public Response validateLogin(String username, UserCredentialsDto passwordDto) {
+        return lease("validateLogin", delegate.validateLogin(username, passwordDto));
+    }
+
+    @Override
+    public List<FederatedUserModel> searchUsers(String search, int first, int max) {
+        return delegate.searchUsers(search, first, max);
+    }
+
+    @Override
+    public Response countUsers(String search) {
+        return lease("countUsers", delegate.countUsers(search));
+    }
+
+    /**
+     * Closes a response obtained from this service; null and already released responses are ignored.
+     */
+    public void release(Response response) {
+        if (response == null) return;
+
+        boolean tracked;
+        synchronized (open) {
+            tracked = open.remove(response) != null;
+        }
+        response.close();
+        if (tracked) leases.closed();
+    }
+
+    /**
+     * Closes every response that was never released, counting each as a leak.
+     */
+    public void releaseAll() {
+        List<Map.Entry<Response, String>> leaked;
+        synchronized (open) {
+            if (open.isEmpty()) return;
+            leaked = new ArrayList<>(open.entrySet());
+            open.clear();
+        }
+
+        for (Map.Entry<Response, String> response : leaked) {
+            try {
+                response.getKey().close();
+            } finally {
+                leases.leaked(response.getValue());
+            }
+        }
+    }
+
+    private Response lease(String operation, Response response) {
+        if (response == null) return null;
+
+        synchronized (open) {
+            open.put(response, operation);
+        }
+        leases.opened();
+        return response;
+    }
+}
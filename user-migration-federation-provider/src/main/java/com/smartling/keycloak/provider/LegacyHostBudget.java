@@ -0,0 +1,193 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.jboss.resteasy.client.jaxrs.engines.ApacheHttpClient4Engine;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.ServiceUnavailableException;
+
+/**
+ * Connections and concurrent calls to one legacy host, shared by every
+ * component that talks to it.
+ *
+ * All components use the host's single connection pool. A call is admitted
+ * while fewer than the host's call limit are in flight and the calling
+ * component is within its fair share: the limit divided evenly among the
+ * components that have calls in flight or waiting, and never more than the
+ * component's own connection pool size. A component that is alone on the
+ * host may use all of it; as others become busy, its share shrinks and its
+ * calls drain down to it.
+ */
+public class LegacyHostBudget {
+
+    private final String host;
+    private final int maxCalls;
+    private final long queueTimeoutNanos;
+    private final Map<String, Usage> usages = new HashMap<>();
+    private int inFlight;
+
+    private ResteasyClient pooledClient;
+
+    LegacyHostBudget(String host, int connections, int maxCalls, long queueTimeoutMillis) {
+        this.host = host;
+        this.maxCalls = Math.max(1, maxCalls);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.pooledClient = new ResteasyClientBuilder()
+                .disableTrustManager()
+                .connectionPoolSize(connections)
+                .maxPooledPerRoute(connections)
+                .build();
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getMaxCalls() {
+        return maxCalls;
+    }
+
+    /**
+     * Returns an HTTP engine backed by the host's shared pool; closing a client
+     * built on it leaves the pool open.
+     */
+    synchronized ClientHttpEngine newHttpEngine() {
+        if (pooledClient == null) throw new IllegalStateException("Budget for " + host + " is closed");
+        return new ApacheHttpClient4Engine(((ApacheHttpClient4Engine) pooledClient.httpEngine()).getHttpClient(), false);
+    }
+
+    /**
+     * Makes the component known to the host, allowing it at most {@code limit} concurrent calls.
+     */
+    synchronized void register(String componentId, int limit) {
+        Usage usage = usage(componentId);
+        usage.limit = Math.max(1, limit);
+        usage.registered = true;
+    }
+
+    synchronized void unregister(String componentId) {
+        Usage usage = usages.get(componentId);
+        if (usage == null) return;
+
+        usage.registered = false;
+        if (usage.inFlight == 0 && usage.waiting == 0) usages.remove(componentId);
+        notifyAll();
+    }
+
+    /**
+     * Waits until the component may make a call to the host, for at most the
+     * queue timeout. Returns false if it timed out.
+     */
+    synchronized boolean acquire(String componentId) throws InterruptedException {
+        Usage usage = usage(componentId);
+        long remaining = queueTimeoutNanos;
+
+        usage.waiting++;
+        try {
+            while (inFlight >= maxCalls || usage.inFlight >= share(usage)) {
+                if (remaining <= 0) return false;
+                long start = System.nanoTime();
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining -= System.nanoTime() - start;
+            }
+            usage.inFlight++;
+            inFlight++;
+            return true;
+        } finally {
+            usage.waiting--;
+            if (!usage.registered && usage.inFlight == 0 && usage.waiting == 0) usages.remove(componentId);
+        }
+    }
+
+    synchronized void release(String componentId) {
+        inFlight--;
+        Usage usage = usages.get(componentId);
+        if (usage != null) {
+            usage.inFlight--;
+            if (!usage.registered && usage.inFlight == 0 && usage.waiting == 0) usages.remove(componentId);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of calls to the host in flight across all components.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the number of calls the component may currently have in flight.
+     */
+    public synchronized int getShare(String componentId) {
+        Usage usage = usages.get(componentId);
+        return usage != null ? share(usage) : 0;
+    }
+
+    synchronized void close() {
+        if (pooledClient != null) pooledClient.close();
+        pooledClient = null;
+    }
+
+    @Override
+    public String toString() {
+        return host;
+    }
+
+    private int share(Usage usage) {
+        int active = 0;
+        for (Usage other : usages.values()) {
+            if (other == usage || other.inFlight > 0 || other.waiting > 0) active++;
+        }
+        return Math.min(usage.limit, (maxCalls + active - 1) / active);
+    }
+
+    private Usage usage(String componentId) {
+        Usage usage = usages.get(componentId);
+        if (usage == null) {
+            usage = new Usage(maxCalls);
+            usages.put(componentId, usage);
+        }
+        return usage;
+    }
+
+    /**
+     * A call the budget turned away before it reached the host. Like a 503 from the
+     * legacy API, but retrying it would only queue more calls on a saturated host.
+     */
+    public static class RejectedException extends ServiceUnavailableException {
+        RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Usage {
+        private int limit;
+        private boolean registered;
+        private int inFlight;
+        private int waiting;
+
+        Usage(int limit) {
+            this.limit = limit;
+        }
+    }
+}
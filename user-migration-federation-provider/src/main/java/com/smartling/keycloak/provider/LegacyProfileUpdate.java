@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The writes needed to bring a local user in line with its legacy profile.
+ *
+ * The update is computed up front by diffing the legacy profile against the
+ * local user: {@link #applyTo(UserModel)} then writes only the fields and
+ * attributes whose values differ and grants only the roles the user is
+ * missing. Every attribute write replaces the attribute's rows, so unchanged
+ * values are never rewritten, and an unchanged profile writes nothing.
+ */
+public class LegacyProfileUpdate {
+
+    private Boolean enabled;
+    private Boolean emailVerified;
+    private String firstName;
+    private boolean firstNameChanged;
+    private String lastName;
+    private boolean lastNameChanged;
+    private final Map<String, List<String>> attributes = new LinkedHashMap<>();
+    private final List<RoleModel> roles = new ArrayList<>();
+
+    /**
+     * Compares a local user with its legacy profile. Roles are only ever
+     * granted, never revoked, and attributes missing from the legacy profile
+     * are kept.
+     */
+    public static LegacyProfileUpdate between(RealmModel realm, UserModel user, FederatedUserModel legacyUser, String versionAttribute) {
+        LegacyProfileUpdate update = new LegacyProfileUpdate();
+
+        if (user.isEnabled() != legacyUser.isEnabled()) update.enabled = legacyUser.isEnabled();
+        if (user.isEmailVerified() != legacyUser.isEmailVerified()) update.emailVerified = legacyUser.isEmailVerified();
+        if (!equal(user.getFirstName(), legacyUser.getFirstName())) {
+            update.firstName = legacyUser.getFirstName();
+            update.firstNameChanged = true;
+        }
+        if (!equal(user.getLastName(), legacyUser.getLastName())) {
+            update.lastName = legacyUser.getLastName();
+            update.lastNameChanged = true;
+        }
+
+        if (legacyUser.getAttributes() != null) {
+            for (Map.Entry<String, List<String>> attribute : legacyUser.getAttributes().entrySet()) {
+                if (!equal(user.getAttribute(attribute.getKey()), attribute.getValue())) {
+                    update.attributes.put(attribute.getKey(), attribute.getValue());
+                }
+            }
+        }
+
+        if (legacyUser.getVersion() != null && !legacyUser.getVersion().equals(user.getFirstAttribute(versionAttribute))) {
+            List<String> version = new ArrayList<>(1);
+            version.add(legacyUser.getVersion());
+            update.attributes.put(versionAttribute, version);
+        }
+
+        if (legacyUser.getRoles() != null) {
+            for (String role : legacyUser.getRoles()) {
+                RoleModel roleModel = realm.getRole(role);
+                if (roleModel != null && !user.hasRole(roleModel)) update.roles.add(roleModel);
+            }
+        }
+
+        return update;
+    }
+
+    public boolean isEmpty() {
+        return getWrites() == 0;
+    }
+
+    /**
+     * Number of writes {@link #applyTo(UserModel)} performs.
+     */
+    public int getWrites() {
+        return (enabled != null ? 1 : 0) + (emailVerified != null ? 1 : 0) + (firstNameChanged ? 1 : 0)
+                + (lastNameChanged ? 1 : 0) + attributes.size() + roles.size();
+    }
+
+    public void applyTo(UserModel user) {
+        if (enabled != null) user.setEnabled(enabled);
+        if (emailVerified != null) user.setEmailVerified(emailVerified);
+        if (firstNameChanged) user.setFirstName(firstName);
+        if (lastNameChanged) user.setLastName(lastName);
+
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            user.setAttribute(attribute.getKey(), attribute.getValue());
+        }
+        for (RoleModel role : roles) {
+            user.grantRole(role);
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.ReadOnlyException;
+import org.keycloak.storage.adapter.AbstractUserAdapter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only view of a legacy user that has not been migrated yet, returned
+ * from searches so that listing users does not import them.
+ *
+ * Its id is a federated storage id, so opening the user in the admin console
+ * goes through {@link RemoteUserFederationProvider#getUserById} and imports it.
+ */
+public class LegacyUserAdapter extends AbstractUserAdapter {
+
+    private final String username;
+    private final FederatedUserModel legacyUser;
+
+    public LegacyUserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, String username, FederatedUserModel legacyUser) {
+        super(session, realm, model);
+        this.username = username;
+        this.legacyUser = legacyUser;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void setUsername(String username) {
+        throw new ReadOnlyException("legacy user is read only until migrated");
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return legacyUser.isEnabled();
+    }
+
+    @Override
+    public String getEmail() {
+        return legacyUser.getEmail();
+    }
+
+    @Override
+    public boolean isEmailVerified() {
+        return legacyUser.isEmailVerified();
+    }
+
+    @Override
+    public String getFirstName() {
+        return legacyUser.getFirstName();
+    }
+
+    @Override
+    public String getLastName() {
+        return legacyUser.getLastName();
+    }
+
+    @Override
+    public Map<String, List<String>> getAttributes() {
+        Map<String, List<String>> attributes = legacyUser.getAttributes();
+        return attributes != null ? Collections.unmodifiableMap(attributes) : Collections.<String, List<String>>emptyMap();
+    }
+
+    @Override
+    public List<String> getAttribute(String name) {
+        List<String> values = getAttributes().get(name);
+        return values != null ? values : Collections.<String>emptyList();
+    }
+
+    @Override
+    public String getFirstAttribute(String name) {
+        List<String> values = getAttribute(name);
+        return values.isEmpty() ? null : values.get(0);
+    }
+}
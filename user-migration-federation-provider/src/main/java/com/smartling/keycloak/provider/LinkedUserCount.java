@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakSessionTask;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Counts the local users still linked to a component with a single query and
+ * hands the result to its {@link MigrationProgress}, which keeps it current
+ * from then on.
+ *
+ * The user storage SPI cannot count users by federation link, so the count
+ * goes to Keycloak's JPA store directly.
+ */
+public class LinkedUserCount implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(LinkedUserCount.class);
+
+    static final String COUNT_QUERY =
+            "select count(u) from UserEntity u where u.realmId = :realmId and u.federationLink = :link";
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final ComponentModel model;
+    private final MigrationProgress progress;
+
+    public LinkedUserCount(KeycloakSessionFactory sessionFactory, ComponentModel model, MigrationProgress progress) {
+        this.sessionFactory = sessionFactory;
+        this.model = model;
+        this.progress = progress;
+    }
+
+    /**
+     * Runs the count on a background thread unless one is already running for the component.
+     */
+    public void start() {
+        if (!progress.tryStartCount()) return;
+
+        Thread thread = new Thread(this, "user-migration-count-" + model.getId());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        long mark = progress.countStarted();
+        final long[] linked = new long[1];
+
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, new KeycloakSessionTask() {
+                @Override
+                public void run(KeycloakSession session) {
+                    JpaConnectionProvider jpa = session.getProvider(JpaConnectionProvider.class);
+                    if (jpa == null) throw new IllegalStateException("Users are not stored with JPA");
+
+                    linked[0] = jpa.getEntityManager().createQuery(COUNT_QUERY, Long.class)
+                            .setParameter("realmId", model.getParentId())
+                            .setParameter("link", model.getId())
+                            .getSingleResult();
+                }
+            });
+            progress.counted(linked[0], mark);
+        } catch (RuntimeException ex) {
+            LOG.warnf("Unable to count linked users of %s: %s", model.getId(), ex.getMessage());
+            progress.countFailed();
+        }
+    }
+}
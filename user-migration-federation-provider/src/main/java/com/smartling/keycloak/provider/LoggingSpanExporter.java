@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Writes finished spans as JSON lines to a dedicated log category, so they
+ * can be routed to their own file by the server's logging configuration.
+ */
+public class LoggingSpanExporter implements SpanExporter {
+
+    public static final String CATEGORY = "com.smartling.keycloak.provider.spans";
+
+    private static final Logger LOG = Logger.getLogger(CATEGORY);
+
+    @Override
+    public void export(Span span) {
+        if (LOG.isInfoEnabled()) LOG.info(span.toJson());
+    }
+
+    @Override
+    public void close() {
+        // no-op
+    }
+}
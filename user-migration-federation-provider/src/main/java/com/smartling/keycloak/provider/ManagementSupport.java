@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.jboss.logging.Logger;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes per-component metrics on the platform MBean server.
+ */
+final class ManagementSupport {
+
+    private static final Logger LOG = Logger.getLogger(ManagementSupport.class);
+
+    static final String DOMAIN = "com.smartling.keycloak";
+
+    private ManagementSupport() {
+    }
+
+    /**
+     * Registers the MXBean as {@code com.smartling.keycloak:type=<type>,component=<id>}.
+     *
+     * @return the name it was registered under, or null if it could not be
+     */
+    static ObjectName register(Object mxBean, String type, String componentId) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=" + type + ",component=" + ObjectName.quote(String.valueOf(componentId)));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) return null;
+
+            server.registerMBean(mxBean, name);
+            return name;
+        } catch (JMException | RuntimeException ex) {
+            LOG.debugf("Unable to publish %s metrics of %s: %s", type, componentId, ex.getMessage());
+            return null;
+        }
+    }
+
+    static void unregister(ObjectName name) {
+        if (name == null) return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException | RuntimeException ex) {
+            LOG.debugf("Unable to withdraw metrics %s: %s", name, ex.getMessage());
+        }
+    }
+}
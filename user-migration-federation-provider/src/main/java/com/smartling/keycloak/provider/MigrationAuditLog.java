@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Records migration events for one provider component.
+ */
+public class MigrationAuditLog {
+
+    /**
+     * Audit log used when auditing is disabled; records nothing.
+     */
+    public static final MigrationAuditLog DISABLED = new MigrationAuditLog(null, null);
+
+    private final AsyncFileAppender appender;
+    private final String componentId;
+
+    public MigrationAuditLog(AsyncFileAppender appender, String componentId) {
+        this.appender = appender;
+        this.componentId = componentId;
+    }
+
+    public boolean isEnabled() {
+        return appender != null;
+    }
+
+    AsyncFileAppender getAppender() {
+        return appender;
+    }
+
+    /**
+     * Lets go of the appender, which is closed once no other component writes to it.
+     */
+    public void close() {
+        if (appender != null) appender.release();
+    }
+
+    public void userImported(RealmModel realm, String username, FederatedUserModel legacyUser) {
+        record(MigrationEvent.Type.USER_IMPORTED, realm, username, legacyUser.isEnabled() ? null : "disabled");
+    }
+
+    public void passwordMigrated(RealmModel realm, String username) {
+        record(MigrationEvent.Type.PASSWORD_MIGRATED, realm, username, null);
+    }
+
+    public void notFound(RealmModel realm, String username) {
+        record(MigrationEvent.Type.NOT_FOUND, realm, username, null);
+    }
+
+    public void failure(RealmModel realm, String username, Throwable cause) {
+        record(MigrationEvent.Type.FAILURE, realm, username, cause.getClass().getSimpleName() + ": " + cause.getMessage());
+    }
+
+    private void record(MigrationEvent.Type type, RealmModel realm, String username, String detail) {
+        if (appender == null) return;
+
+        appender.append(new MigrationEvent(type, realm != null ? realm.getId() : null, componentId, username, detail));
+    }
+}
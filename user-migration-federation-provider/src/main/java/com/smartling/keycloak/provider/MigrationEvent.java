@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A single entry of the migration audit log.
+ */
+public class MigrationEvent implements AsyncFileAppender.Line {
+
+    public enum Type {
+        USER_IMPORTED,
+        PASSWORD_MIGRATED,
+        NOT_FOUND,
+        FAILURE
+    }
+
+    // Lines are formatted on the writer thread of each appender, so every writer keeps its own formatter
+    private static final ThreadLocal<SimpleDateFormat> TIMESTAMP_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+
+    private final long timestamp;
+    private final Type type;
+    private final String realmId;
+    private final String componentId;
+    private final String username;
+    private final String detail;
+
+    public MigrationEvent(Type type, String realmId, String componentId, String username, String detail) {
+        this.timestamp = System.currentTimeMillis();
+        this.type = type;
+        this.realmId = realmId;
+        this.componentId = componentId;
+        this.username = username;
+        this.detail = detail;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getComponentId() {
+        return componentId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    @Override
+    public String toLine() {
+        StringBuilder json = new StringBuilder(192);
+        json.append("{\"time\":\"").append(formatTimestamp(timestamp))
+                .append("\",\"event\":\"").append(type).append('"');
+        appendField(json, "realm", realmId);
+        appendField(json, "component", componentId);
+        appendField(json, "username", username);
+        appendField(json, "detail", detail);
+        return json.append('}').toString();
+    }
+
+    private static void appendField(StringBuilder json, String name, String value) {
+        if (value == null) return;
+
+        json.append(",\"").append(name).append("\":");
+        Span.appendString(json, value);
+    }
+
+    private static String formatTimestamp(long timestamp) {
+        return TIMESTAMP_FORMAT.get().format(new Date(timestamp));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+
+/**
+ * Tracks how far the migration of one component has come, so operators can
+ * tell when the legacy API may be retired.
+ *
+ * Linked users are counted once with a query on local storage and from then
+ * on kept up to date incrementally as users are imported and their passwords
+ * migrated. Imports and migrations on other cluster nodes are only picked up
+ * by the next count, so in a cluster the count is a per-node estimate.
+ */
+public class MigrationProgress implements MigrationProgressMXBean {
+
+    private static final Logger LOG = Logger.getLogger(MigrationProgress.class);
+
+    private final String componentId;
+    private final AtomicLong delta = new AtomicLong();
+    private volatile long baseline;
+    private volatile boolean counted;
+    private final AtomicBoolean counting = new AtomicBoolean();
+    private volatile long lastSuccessfulLookup;
+    private ObjectName objectName;
+
+    public MigrationProgress(String componentId) {
+        this.componentId = componentId;
+    }
+
+    public synchronized void publish() {
+        if (objectName == null) objectName = ManagementSupport.register(this, "MigrationProgress", componentId);
+    }
+
+    public synchronized void close() {
+        ManagementSupport.unregister(objectName);
+        objectName = null;
+    }
+
+    void userImported() {
+        delta.incrementAndGet();
+    }
+
+    void userMigrated() {
+        long left = baseline + delta.decrementAndGet();
+        if (counted && left == 0) LOG.infof("All users of %s have been migrated; the legacy API is no longer needed", componentId);
+    }
+
+    void lookupSucceeded() {
+        lastSuccessfulLookup = System.currentTimeMillis();
+    }
+
+    public boolean isCounted() {
+        return counted;
+    }
+
+    /**
+     * Claims the right to count linked users; returns false if a count is already running.
+     */
+    boolean tryStartCount() {
+        return counting.compareAndSet(false, true);
+    }
+
+    /**
+     * Marks the start of a count of linked users; pass the returned mark to {@link #counted(long, long)}.
+     */
+    long countStarted() {
+        return delta.get();
+    }
+
+    /**
+     * Records the number of linked users a count found; changes made while it ran are kept.
+     */
+    void counted(long linkedUsers, long mark) {
+        baseline = linkedUsers - mark;
+        counted = true;
+        counting.set(false);
+        LOG.infof("%s has %d linked users left to migrate", componentId, getLinkedUsers());
+    }
+
+    void countFailed() {
+        counting.set(false);
+    }
+
+    @Override
+    public long getLinkedUsers() {
+        return counted ? Math.max(0, baseline + delta.get()) : -1;
+    }
+
+    @Override
+    public long getLastSuccessfulLookup() {
+        return lastSuccessfulLookup;
+    }
+}
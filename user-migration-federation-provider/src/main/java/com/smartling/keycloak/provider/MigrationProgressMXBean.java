@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+/**
+ * Migration progress of one component, published over JMX.
+ */
+public interface MigrationProgressMXBean {
+
+    /**
+     * Local users still linked to the component, i.e. imported but without a
+     * migrated password, or -1 until they have been counted.
+     */
+    long getLinkedUsers();
+
+    /**
+     * Time, in milliseconds since the epoch, a legacy lookup last found a
+     * user, or 0 if none has since startup.
+     */
+    long getLastSuccessfulLookup();
+}
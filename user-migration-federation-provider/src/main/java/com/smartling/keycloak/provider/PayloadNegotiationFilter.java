@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserService;
+
+import java.io.IOException;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Asks the legacy API for CBOR responses, with plain JSON as the fallback
+ * for servers that do not support it.
+ */
+public class PayloadNegotiationFilter implements ClientRequestFilter {
+
+    static final String ACCEPT = FederatedUserService.APPLICATION_CBOR + ", " + MediaType.APPLICATION_JSON + ";q=0.9";
+
+    @Override
+    public void filter(ClientRequestContext requestContext) throws IOException {
+        if (HttpMethod.HEAD.equals(requestContext.getMethod())) return;
+
+        requestContext.getHeaders().putSingle(HttpHeaders.ACCEPT, ACCEPT);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakSessionTask;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports a list of known-active users ahead of their first login, so they
+ * never take the lazy migration path.
+ *
+ * Usernames are read from a file, one per line; blank lines and lines starting
+ * with {@code #} are ignored. They are fetched from the legacy API in batches,
+ * a bounded number of batches at a time, and each batch is imported in its own
+ * Keycloak transaction.
+ */
+public class PreMigrationJob {
+
+    private static final Logger LOG = Logger.getLogger(PreMigrationJob.class);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final RemoteUserFederationProviderFactory providerFactory;
+    private final String realmId;
+    private final ComponentModel model;
+    private final RemoteUserFederationProviderConfig config;
+
+    public PreMigrationJob(KeycloakSessionFactory sessionFactory, RemoteUserFederationProviderFactory providerFactory,
+                           String realmId, ComponentModel model) {
+        this.sessionFactory = sessionFactory;
+        this.providerFactory = providerFactory;
+        this.realmId = realmId;
+        this.model = model;
+        this.config = new RemoteUserFederationProviderConfig(model);
+    }
+
+    public SynchronizationResult run() {
+        String file = config.getPreMigrationFile();
+        if (file == null) return SynchronizationResult.ignored();
+
+        List<String> usernames;
+        try {
+            usernames = readUsernames(file);
+        } catch (IOException ex) {
+            LOG.warnf("Unable to read pre-migration file %s: %s", file, ex.getMessage());
+            SynchronizationResult result = new SynchronizationResult();
+            result.increaseFailed();
+            return result;
+        }
+
+        int batchSize = config.getPreMigrationBatchSize();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(config.getPreMigrationParallelism(),
+                Math.max(1, (usernames.size() + batchSize - 1) / batchSize)));
+        try {
+            List<Future<SynchronizationResult>> batches = new ArrayList<>();
+            for (int first = 0; first < usernames.size(); first += batchSize) {
+                final List<String> batch = usernames.subList(first, Math.min(usernames.size(), first + batchSize));
+                batches.add(executor.submit(new Callable<SynchronizationResult>() {
+                    @Override
+                    public SynchronizationResult call() {
+                        return importBatch(batch);
+                    }
+                }));
+            }
+
+            SynchronizationResult result = new SynchronizationResult();
+            for (Future<SynchronizationResult> batch : batches) {
+                result.add(batch.get());
+            }
+            LOG.infof("Pre-migrated %s from %s: %s", model.getName(), file, result.getStatus());
+            return result;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while pre-migrating users", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // A batch that cannot be fetched or committed counts as failed as a whole
+    private SynchronizationResult importBatch(final List<String> usernames) {
+        final SynchronizationResult[] result = new SynchronizationResult[1];
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, new KeycloakSessionTask() {
+                @Override
+                public void run(KeycloakSession session) {
+                    RealmModel realm = session.realms().getRealm(realmId);
+                    RemoteUserFederationProvider provider = providerFactory.create(session, model);
+                    try {
+                        result[0] = provider.importUsers(realm, usernames);
+                    } finally {
+                        // not created through the session, so Keycloak would never close it
+                        provider.close();
+                    }
+                }
+            });
+            return result[0];
+        } catch (RuntimeException ex) {
+            LOG.warnf("Unable to pre-migrate a batch of %d users: %s", usernames.size(), ex.getMessage());
+            SynchronizationResult failed = new SynchronizationResult();
+            failed.setFailed(usernames.size());
+            return failed;
+        }
+    }
+
+    static List<String> readUsernames(String file) throws IOException {
+        Set<String> usernames = new LinkedHashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String username = line.trim().toLowerCase();
+                if (!username.isEmpty() && !username.startsWith("#")) usernames.add(username);
+            }
+        }
+        return new ArrayList<>(usernames);
+    }
+}
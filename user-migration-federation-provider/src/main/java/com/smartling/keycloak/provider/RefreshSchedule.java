@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when an imported user is due for another conditional check against
+ * the legacy API, so that a user looked up many times a minute is re-checked
+ * at most once per refresh interval on this node.
+ */
+public class RefreshSchedule {
+
+    static final int MAX_ENTRIES = 10000;
+
+    private final long intervalNanos;
+    private final Map<String, Long> lastChecked = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public RefreshSchedule(int intervalSeconds) {
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+    }
+
+    public boolean isEnabled() {
+        return intervalNanos > 0;
+    }
+
+    /**
+     * Returns true, and records the check, if the given user has not been
+     * checked within the refresh interval.
+     */
+    public synchronized boolean checkDue(String userId) {
+        if (!isEnabled()) return false;
+
+        long now = System.nanoTime();
+        Long last = lastChecked.get(userId);
+        if (last != null && now - last < intervalNanos) return false;
+
+        lastChecked.put(userId, now);
+        return true;
+    }
+}
@@ -20,9 +20,6 @@ import com.smartling.keycloak.federation.FederatedUserService;
 import com.smartling.keycloak.federation.UserCredentialsDto;
 import org.apache.http.HttpStatus;
 import org.jboss.logging.Logger;
-import org.jboss.resteasy.client.jaxrs.ResteasyClient;
-import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
-import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputUpdater;
@@ -37,13 +34,21 @@ import org.keycloak.models.UserModel;
 import org.keycloak.storage.ReadOnlyException;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.user.ImportedUserValidation;
+import org.keycloak.storage.user.SynchronizationResult;
 import org.keycloak.storage.user.UserLookupProvider;
+import org.keycloak.storage.user.UserQueryProvider;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Response;
 
 /**
@@ -54,37 +59,91 @@ import javax.ws.rs.core.Response;
 public class RemoteUserFederationProvider implements
         UserStorageProvider,
         UserLookupProvider, // Basic login capabilities
+        UserQueryProvider, // Admin console and API searches
+        ImportedUserValidation, // Re-synchronise imported users that are not yet migrated
         CredentialInputValidator, // validate CredentialInput, i.e. verify a password
         CredentialInputUpdater {
 
     private static final Logger LOG = Logger.getLogger(RemoteUserFederationProvider.class);
 
-    private KeycloakSession session;
-    protected ComponentModel model;
-    private final FederatedUserService federatedUserService;
+    /**
+     * User attribute holding the legacy version the imported user was last synchronised with.
+     */
+    public static final String LEGACY_VERSION_ATTRIBUTE = "legacy_version";
 
-    private static FederatedUserService buildClient(String uri) {
-        ResteasyClient client = new ResteasyClientBuilder().disableTrustManager().build();
-        ResteasyWebTarget target =  client.target(uri);
+    // Milliseconds between attempts to claim a user another session is importing
+    private static final long MIGRATION_POLL_INTERVAL = 20;
 
-        return target
-            .proxyBuilder(FederatedUserService.class)
-            .classloader(FederatedUserService.class.getClassLoader())
-            .build();
-    }
+    private KeycloakSession session;
+    protected ComponentModel model;
+    private final LeaseTrackingFederatedUserService federatedUserService;
+    private final UserLookupState lookupState;
+    private final Tracer tracer;
+    private final MigrationAuditLog auditLog;
+    private final ComponentResources resources;
 
 
     // Constructor
 
     public RemoteUserFederationProvider(KeycloakSession session, ComponentModel model, String uri) {
-        this(session, model, buildClient(uri));
-        LOG.infof("Using validation base URI: " + uri);
+        this(session, model, owned(ComponentResources.standalone(model, uri)));
+    }
+
+    public RemoteUserFederationProvider(KeycloakSession session, ComponentModel model, ComponentResources resources) {
+        this(session, model, resources.getFederatedUserService(), createLookupState(session, model), resources);
     }
 
     protected RemoteUserFederationProvider(KeycloakSession session, ComponentModel model, FederatedUserService federatedUserService) {
+        this(session, model, federatedUserService, createLookupState(session, model));
+    }
+
+    protected RemoteUserFederationProvider(KeycloakSession session, ComponentModel model, FederatedUserService federatedUserService, UserLookupState lookupState) {
+        this(session, model, federatedUserService, lookupState, owned(ComponentResources.standalone(model)));
+    }
+
+    protected RemoteUserFederationProvider(KeycloakSession session, ComponentModel model, FederatedUserService federatedUserService,
+                                           UserLookupState lookupState, ComponentResources resources) {
         this.session = session;
         this.model = model;
-        this.federatedUserService = federatedUserService;
+        this.tracer = resources.getTracer();
+        this.federatedUserService = new LeaseTrackingFederatedUserService(
+                tracer.isEnabled() ? new TracingFederatedUserService(federatedUserService, tracer, resources.getConfig().getTracingSecret()) : federatedUserService,
+                resources.getConnectionLeases());
+        this.lookupState = lookupState;
+        this.auditLog = resources.getAuditLog();
+        this.resources = resources;
+    }
+
+    // Resources a provider builds for itself are used by it alone, and closed with it
+    private static ComponentResources owned(ComponentResources resources) {
+        resources.retain();
+        resources.retire();
+        return resources;
+    }
+
+    ComponentResources getResources() {
+        return resources;
+    }
+
+    private static UserLookupState createLookupState(KeycloakSession session, ComponentModel model) {
+        RemoteUserFederationProviderConfig config = new RemoteUserFederationProviderConfig(model);
+        if (!config.isClusterCacheEnabled()) return UserLookupState.NONE;
+
+        return new InfinispanUserLookupState(session, model.getId(), config);
+    }
+
+    // Starts a provider span, continuing the trace of the incoming Keycloak request if it carries one
+    private Span startSpan(String name, String username) {
+        if (!tracer.isEnabled()) return Span.NOOP;
+
+        String remoteTraceParent = null;
+        if (session.getContext() != null && session.getContext().getRequestHeaders() != null) {
+            remoteTraceParent = session.getContext().getRequestHeaders().getHeaderString(Tracer.TRACEPARENT);
+        }
+
+        Span span = tracer.start(name, remoteTraceParent).setAttribute("component.id", model.getId());
+        String hash = Tracer.hashUsername(username, resources.getConfig().getTracingSecret());
+        return hash != null ? span.setAttribute("user.hash", hash) : span;
     }
 
 
@@ -108,66 +167,184 @@ public class RemoteUserFederationProvider implements
 
     @Override
     public void close() {
-        // no-op
+        // safety net for responses a code path failed to close; counted and logged as leaks
+        federatedUserService.releaseAll();
+        resources.release();
     }
 
 
     // UserLookupProvider
 
+    /*
+     * In drain mode only users that were already imported are served: their passwords are
+     * still checked against the legacy API, but nobody else is looked up, imported, searched
+     * or refreshed, so every other lookup is answered from local storage alone.
+     */
+    private boolean isDraining() {
+        return resources.getConfig().isDrainMode();
+    }
+
+    private static String normalizeUsername(String rawUsername) {
+        return rawUsername.toLowerCase().trim();
+    }
+
     // When legacyUser is found, create user in Keycloak
     private UserModel createUserModel(RealmModel realm, String rawUsername) throws NotFoundException {
-        String username = rawUsername.toLowerCase().trim();
-        LOG.infof("Creating user model for: %s", username);
+        String username = normalizeUsername(rawUsername);
+        LOG.tracef("Creating user model for: %s", username);
 
-        FederatedUserModel legacyUser = federatedUserService.getUserDetails(username);
+        if (lookupState.isNotFound(username)) {
+            LOG.debugf("Federated user recently not found: %s", username);
+            return null;
+        }
+
+        FederatedUserModel legacyUser = lookupState.getSnapshot(username);
+        if (legacyUser == null) {
+            legacyUser = federatedUserService.getUserDetails(username);
+            resources.getMigrationProgress().lookupSucceeded();
+            lookupState.putSnapshot(username, legacyUser);
+        }
+
+        return importLegacyUser(realm, username, legacyUser, true);
+    }
+
+    private UserModel importLegacyUser(RealmModel realm, String username, FederatedUserModel legacyUser, boolean awaitClaim) {
         if (!username.equals(legacyUser.getEmail())) {
             throw new IllegalStateException(String.format("Local and remote users differ: [%s != %s]", username, legacyUser.getUsername()));
         }
 
+        if (!awaitClaim && !lookupState.tryBeginMigration(username)) {
+            // Batches never wait, as they would hold their own claims meanwhile; the other session imports the user
+            LOG.debugf("Migration of %s already in progress elsewhere", username);
+            return null;
+        }
+        if (awaitClaim && !awaitMigration(username)) {
+            // The other session never finished; serve whatever it may have committed meanwhile
+            LOG.debugf("Migration of %s still in progress elsewhere", username);
+            return session.userLocalStorage().getUserByUsername(username, realm);
+        }
+
+        // Claims are only released once the importing transaction is over, so a session that
+        // missed the user locally before another one committed it finds it now
+        UserModel imported = session.userLocalStorage().getUserByUsername(username, realm);
+        if (imported != null) {
+            LOG.debugf("Federated user %s was imported concurrently", username);
+            return imported;
+        }
+
+        Span span = tracer.start("createUserModel.localWrites");
+        try {
+            return importUser(realm, username, legacyUser);
+        } finally {
+            span.end();
+        }
+    }
+
+    /*
+     * Claims the import of the user. If another node or session is importing it right now,
+     * waits for that session's transaction to end rather than racing it to addUser or failing
+     * the login, for at most the configured migration wait. Returns false if the claim could
+     * not be had in time.
+     */
+    private boolean awaitMigration(String username) {
+        if (lookupState.tryBeginMigration(username)) return true;
+
+        LOG.debugf("Migration of %s already in progress elsewhere, waiting", username);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(resources.getConfig().getMigrationWait());
+        try {
+            while (System.nanoTime() - deadline < 0) {
+                TimeUnit.MILLISECONDS.sleep(MIGRATION_POLL_INTERVAL);
+                if (lookupState.tryBeginMigration(username)) return true;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private UserModel importUser(RealmModel realm, String username, FederatedUserModel legacyUser) {
         UserModel userModel = session.userLocalStorage().addUser(realm, username);
-        LOG.info("User model created");
+        LOG.trace("User model created");
 
         userModel.setFederationLink(model.getId());
-        userModel.setEnabled(legacyUser.isEnabled());
         userModel.setEmail(username);
-        userModel.setEmailVerified(legacyUser.isEmailVerified());
-        userModel.setFirstName(legacyUser.getFirstName());
-        userModel.setLastName(legacyUser.getLastName());
-
-        if (legacyUser.getAttributes() != null) {
-            Map<String, List<String>> attributes = legacyUser.getAttributes();
-            for (String attributeName : attributes.keySet())
-                userModel.setAttribute(attributeName, attributes.get(attributeName));
-        }
-
-        if (legacyUser.getRoles() != null) {
-            for (String role : legacyUser.getRoles()) {
-                RoleModel roleModel = realm.getRole(role);
-                if (roleModel != null) {
-                    userModel.grantRole(roleModel);
-                    LOG.infof("Granted user %s, role %s", username, role);
+        LegacyProfileUpdate.between(realm, userModel, legacyUser, LEGACY_VERSION_ATTRIBUTE).applyTo(userModel);
+
+        auditLog.userImported(realm, username, legacyUser);
+        resources.getMigrationProgress().userImported();
+        return userModel;
+    }
+
+    /**
+     * Imports the given users ahead of their first login, fetching them from the
+     * legacy API in one request. Users that already exist locally are skipped.
+     */
+    public SynchronizationResult importUsers(RealmModel realm, Collection<String> rawUsernames) {
+        SynchronizationResult result = new SynchronizationResult();
+
+        Set<String> pending = new LinkedHashSet<>();
+        for (String rawUsername : rawUsernames) {
+            String username = normalizeUsername(rawUsername);
+            if (session.userLocalStorage().getUserByUsername(username, realm) == null) pending.add(username);
+        }
+        if (pending.isEmpty()) return result;
+
+        Span span = startSpan("importUsers", null).setAttribute("batch.size", pending.size());
+        try {
+            List<FederatedUserModel> legacyUsers = federatedUserService.getUserDetailsBatch(new ArrayList<>(pending));
+            resources.getMigrationProgress().lookupSucceeded();
+            for (FederatedUserModel legacyUser : legacyUsers != null ? legacyUsers : Collections.<FederatedUserModel>emptyList()) {
+                String username = legacyUser.getEmail() != null ? normalizeUsername(legacyUser.getEmail()) : null;
+                if (!pending.remove(username)) continue;
+
+                try {
+                    if (importLegacyUser(realm, username, legacyUser, false) != null) result.increaseAdded();
+                } catch (RuntimeException ex) {
+                    LOG.debugf("Unable to pre-migrate %s: %s", username, ex.getMessage());
+                    auditLog.failure(realm, username, ex);
+                    result.increaseFailed();
                 }
             }
-        }
 
-        return userModel;
+            for (String username : pending) {
+                lookupState.markNotFound(username);
+                auditLog.notFound(realm, username);
+            }
+            span.setAttribute("batch.imported", result.getAdded());
+            return result;
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            throw ex;
+        } finally {
+            span.end();
+        }
     }
 
     @Override
     public UserModel getUserByEmail(String email, RealmModel realm) {
-        LOG.infof("Get by email: %s", email);
+        LOG.tracef("Get by email: %s", email);
+        if (isDraining()) return null;
 
+        Span span = startSpan("getUserByEmail", email);
         try {
             return this.createUserModel(realm, email);
         } catch (NotFoundException ex) {
-            LOG.error("Federated user (by email) not found: " + email);
+            LOG.debugf("Federated user (by email) not found: %s", email);
+            lookupState.markNotFound(normalizeUsername(email));
+            auditLog.notFound(realm, normalizeUsername(email));
             return null;
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            auditLog.failure(realm, normalizeUsername(email), ex);
+            throw ex;
+        } finally {
+            span.end();
         }
     }
 
     @Override
     public UserModel getUserById(String id, RealmModel realm) {
-        LOG.infof("Get by id: %s", id);
+        LOG.tracef("Get by id: %s", id);
 
         StorageId storageId = new StorageId(id);
         String username = storageId.getExternalId();
@@ -176,56 +353,327 @@ public class RemoteUserFederationProvider implements
 
     @Override
     public UserModel getUserByUsername(String username, RealmModel realm) {
-        LOG.infof("Get by username: %s", username);
+        LOG.tracef("Get by username: %s", username);
+        if (isDraining()) return null;
 
+        Span span = startSpan("getUserByUsername", username);
         try {
             return this.createUserModel(realm, username);
         } catch (NotFoundException ex) {
-            LOG.errorf("Federated user not found: %s", username);
+            LOG.debugf("Federated user not found: %s", username);
+            lookupState.markNotFound(normalizeUsername(username));
+            auditLog.notFound(realm, normalizeUsername(username));
             return null;
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            auditLog.failure(realm, normalizeUsername(username), ex);
+            throw ex;
+        } finally {
+            span.end();
+        }
+    }
+
+
+    // ImportedUserValidation
+
+    /*
+     * Called by Keycloak whenever it loads a user this provider imported but has not yet
+     * migrated. At most once per refresh interval the legacy API is asked, with the stored
+     * version as If-None-Match, whether the user changed; an unchanged user costs the legacy
+     * system a 304 without a body. The user is always returned: Keycloak deletes users this
+     * method rejects, and a legacy outage must never cost anyone their account.
+     */
+    @Override
+    public UserModel validate(RealmModel realm, UserModel user) {
+        if (user.getFederationLink() == null || !user.getFederationLink().equals(model.getId())) return user;
+        if (isDraining() || !resources.getRefreshSchedule().checkDue(user.getId())) return user;
+
+        Span span = startSpan("refreshUser", user.getUsername());
+        try {
+            span.setAttribute("user.changed", refreshUser(realm, user));
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            LOG.debugf("Unable to refresh %s: %s", user.getUsername(), ex.getMessage());
+        } finally {
+            span.end();
+        }
+        return user;
+    }
+
+    private boolean refreshUser(RealmModel realm, UserModel user) {
+        String version = user.getFirstAttribute(LEGACY_VERSION_ATTRIBUTE);
+        Response response = federatedUserService.getUserDetailsIfChanged(user.getUsername(),
+                version != null ? new EntityTag(version).toString() : null);
+        try {
+            if (HttpStatus.SC_NOT_MODIFIED == response.getStatus()) {
+                LOG.tracef("Federated user unchanged: %s", user.getUsername());
+                resources.getMigrationProgress().lookupSucceeded();
+                return false;
+            }
+            if (HttpStatus.SC_OK != response.getStatus()) {
+                LOG.debugf("Federated user %s not refreshed, status %d", user.getUsername(), response.getStatus());
+                return false;
+            }
+            resources.getMigrationProgress().lookupSucceeded();
+
+            FederatedUserModel legacyUser = response.readEntity(FederatedUserModel.class);
+            EntityTag etag = response.getEntityTag();
+            if (legacyUser.getVersion() == null && etag != null) legacyUser.setVersion(etag.getValue());
+
+            LegacyProfileUpdate update = LegacyProfileUpdate.between(realm, user, legacyUser, LEGACY_VERSION_ATTRIBUTE);
+            if (update.isEmpty()) return false;
+
+            Span span = tracer.start("refreshUser.localWrites").setAttribute("user.writes", update.getWrites());
+            try {
+                update.applyTo(user);
+            } finally {
+                span.end();
+            }
+            LOG.debugf("Federated user refreshed: %s", user.getUsername());
+            return true;
+        } finally {
+            federatedUserService.release(response);
+        }
+    }
+
+
+    // UserQueryProvider
+
+    @Override
+    public int getUsersCount(RealmModel realm) {
+        return countLegacyUsers(realm);
+    }
+
+    @Override
+    public List<UserModel> getUsers(RealmModel realm) {
+        return getUsers(realm, 0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<UserModel> getUsers(RealmModel realm, int firstResult, int maxResults) {
+        return searchLegacyUsers(realm, null, firstResult, maxResults);
+    }
+
+    @Override
+    public List<UserModel> searchForUser(String search, RealmModel realm) {
+        return searchForUser(search, realm, 0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<UserModel> searchForUser(String search, RealmModel realm, int firstResult, int maxResults) {
+        return searchLegacyUsers(realm, search, firstResult, maxResults);
+    }
+
+    @Override
+    public List<UserModel> searchForUser(Map<String, String> params, RealmModel realm) {
+        return searchForUser(params, realm, 0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<UserModel> searchForUser(Map<String, String> params, RealmModel realm, int firstResult, int maxResults) {
+        // The legacy API takes a single search string; use the most selective attribute given
+        for (String attribute : new String[] { UserModel.USERNAME, UserModel.EMAIL, UserModel.LAST_NAME, UserModel.FIRST_NAME }) {
+            String value = params.get(attribute);
+            if (value != null && !value.trim().isEmpty()) {
+                return searchLegacyUsers(realm, value.trim(), firstResult, maxResults);
+            }
+        }
+        return searchLegacyUsers(realm, null, firstResult, maxResults);
+    }
+
+    @Override
+    public List<UserModel> getGroupMembers(RealmModel realm, GroupModel group, int firstResult, int maxResults) {
+        // legacy users join groups only once migrated
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<UserModel> getGroupMembers(RealmModel realm, GroupModel group) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<UserModel> searchForUserByUserAttribute(String attrName, String attrValue, RealmModel realm) {
+        return Collections.emptyList();
+    }
+
+    /*
+     * Counts the users searches list, so that migrated users, which local storage
+     * counts itself, are not counted twice. The legacy API's own total cannot be
+     * used as it includes them.
+     */
+    private int countLegacyUsers(RealmModel realm) {
+        if (!resources.getConfig().isSearchEnabled() || isDraining()) return 0;
+
+        SearchCountCache counts = resources.getSearchCounts();
+        Integer count = counts.get(null);
+        if (count != null) return count;
+
+        Span span = startSpan("getUsersCount", null);
+        try {
+            count = walkLegacyUsers(realm, null, 0, Integer.MAX_VALUE, null);
+            span.setAttribute("search.results", count);
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            throw ex;
+        } finally {
+            span.end();
         }
+
+        counts.put(null, count);
+        return count;
     }
 
-   
+    /*
+     * Lists the legacy users that are not migrated yet, the same way Keycloak's LDAP
+     * provider skips imported users, because local storage returns them itself.
+     * Pages are always filled while legacy users remain: Keycloak takes a short page
+     * as the end of the results.
+     */
+    private List<UserModel> searchLegacyUsers(RealmModel realm, String search, int firstResult, int maxResults) {
+        if (!resources.getConfig().isSearchEnabled() || isDraining() || maxResults == 0) return Collections.emptyList();
+
+        String query = search == null || search.trim().isEmpty() || "*".equals(search.trim()) ? null : search.trim();
+        int max = maxResults < 0 ? Integer.MAX_VALUE : maxResults;
+
+        Span span = startSpan("searchForUser", null);
+        try {
+            List<UserModel> results = new ArrayList<>(Math.min(max, resources.getConfig().getSearchPageSize()));
+            walkLegacyUsers(realm, query, Math.max(0, firstResult), max, results);
+            span.setAttribute("search.results", results.size());
+            return results;
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            throw ex;
+        } finally {
+            span.end();
+        }
+    }
+
+    /*
+     * Walks the unmigrated users among the first Search Max Results legacy matches of
+     * a search, skipping the first `skip` of them and adding up to `max` to `results`,
+     * and returns how many it went through. Legacy users are requested one page at a
+     * time, so at most one page is held in memory, and never past the maximum, so
+     * that unbounded listings cannot pull in the whole legacy directory.
+     *
+     * Offsets count unmigrated users only, so where a page starts in the legacy
+     * results is remembered with the search counts; paging forward resumes there
+     * instead of walking the skipped users again.
+     */
+    private int walkLegacyUsers(RealmModel realm, String query, int skip, int max, List<UserModel> results) {
+        SearchCountCache offsets = resources.getSearchCounts();
+        int pageSize = resources.getConfig().getSearchPageSize();
+        int limit = resources.getConfig().getSearchMaxResults();
+        long end = (long) skip + max;
+
+        int listed = 0;
+        int offset = 0;
+        Integer resumed = skip > 0 ? offsets.getOffset(query, skip) : null;
+        if (resumed != null) {
+            listed = skip;
+            offset = resumed;
+        }
+
+        while (listed < end && offset < limit) {
+            int requested = (int) Math.min(Math.min(pageSize, limit - offset), end - listed);
+            List<FederatedUserModel> page = federatedUserService.searchUsers(query, offset, requested);
+            if (page == null || page.isEmpty()) break;
+
+            for (FederatedUserModel legacyUser : page) {
+                if (listed >= end) break;
+                offset++;
+
+                String username = normalizeUsername(legacyUser.getEmail() != null ? legacyUser.getEmail() : legacyUser.getUsername());
+                if (session.userLocalStorage().getUserByUsername(username, realm) != null) continue;
+
+                if (results != null && listed >= skip) {
+                    results.add(new LegacyUserAdapter(session, realm, model, username, legacyUser));
+                }
+                listed++;
+            }
+            if (page.size() < requested) break;
+        }
+
+        if (listed > skip) offsets.putOffset(query, listed, offset);
+        return listed;
+    }
+
+
     // CredentialInputValidator
 
     @Override
     public boolean isConfiguredFor(RealmModel realm,UserModel user,String credentialType) {
-        LOG.infof("isConfiguredFor: %s", credentialType);
+        LOG.tracef("isConfiguredFor: %s", credentialType);
         return true;
     }
 
     @Override
     public boolean supportsCredentialType(String credentialType) {
-        LOG.infof("supportsCredentialType: %s", credentialType);
+        LOG.tracef("supportsCredentialType: %s", credentialType);
         return credentialType.equals(CredentialModel.PASSWORD);
     }
 
     @Override
     public boolean isValid(RealmModel realm, UserModel user,CredentialInput input) {
-        LOG.infof("isValid", user.getUsername());
+        LOG.tracef("isValid: %s", user.getUsername());
         if (!(input instanceof UserCredentialModel)) return false;
 
-        LOG.info("isValid: Checking if user exists");
+        Span span = startSpan("isValid", user.getUsername());
+        try {
+            boolean valid = validate(realm, user, input);
+            span.setAttribute("credentials.valid", valid);
+            return valid;
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            auditLog.failure(realm, user.getUsername(), ex);
+            throw ex;
+        } finally {
+            span.end();
+        }
+    }
+
+    private boolean validate(RealmModel realm, UserModel user, CredentialInput input) {
+        LOG.trace("isValid: Checking if user exists");
         Response response = federatedUserService.validateUserExists(user.getUsername());
-        if(HttpStatus.SC_OK != response.getStatus()) return false;
-        LOG.info("isValid: User exists");
+        try {
+            if(HttpStatus.SC_OK != response.getStatus()) return false;
+            resources.getMigrationProgress().lookupSucceeded();
+        } finally {
+            federatedUserService.release(response);
+        }
+        LOG.trace("isValid: User exists");
 
         // Check password
 
-        LOG.info("isValid: Validating credentials");
+        LOG.trace("isValid: Validating credentials");
 
         UserCredentialModel credentials = (UserCredentialModel)input;
 
+        boolean valid;
         response = federatedUserService.validateLogin(user.getUsername(), new UserCredentialsDto(credentials.getValue()));
-        boolean valid = HttpStatus.SC_OK == response.getStatus();
+        try {
+            valid = HttpStatus.SC_OK == response.getStatus();
+        } finally {
+            federatedUserService.release(response);
+        }
 
         if (valid) {
-            LOG.info("isValid: Credentials are valid");
-            user.setFederationLink(null);
-            this.session.userCredentialManager().updateCredential(realm, user, input);
-            // user.updateCredential(credentials);
-            LOG.info("isValid: Credentials updated in Keycloak and FederationLink removed");
+            LOG.trace("isValid: Credentials are valid");
+            Span span = tracer.start("isValid.localWrites");
+            try {
+                // Both writes go through the same user adapter within the same transaction, so the
+                // user cache registers a single invalidation for them, sent when the transaction
+                // commits. The link must be cleared first: while it is set, the credential manager
+                // routes password updates back to this provider, which rejects them.
+                user.setFederationLink(null);
+                this.session.userCredentialManager().updateCredential(realm, user, input);
+            } finally {
+                span.end();
+            }
+            LOG.trace("isValid: Credentials updated in Keycloak and FederationLink removed");
+            auditLog.passwordMigrated(realm, user.getUsername());
+            resources.getMigrationProgress().userMigrated();
         }
 
         return valid;        
@@ -236,7 +684,7 @@ public class RemoteUserFederationProvider implements
 
     @Override
     public boolean updateCredential(RealmModel realm, UserModel user, CredentialInput input) {
-        LOG.info("updateCredential");
+        LOG.trace("updateCredential");
         if (input.getType().equals(CredentialModel.PASSWORD)) throw new ReadOnlyException("user is read only for this update");
         
         return false;
@@ -244,12 +692,12 @@ public class RemoteUserFederationProvider implements
 
     @Override
     public void disableCredentialType(RealmModel realm, UserModel user, String credentialType) {
-        LOG.infof("disableCredentialType: %s", credentialType);
+        LOG.tracef("disableCredentialType: %s", credentialType);
     }
     
     @Override
     public Set<String> getDisableableCredentialTypes(RealmModel realm, UserModel user) {
-        LOG.info("getDisableableCredentialTypes");
+        LOG.trace("getDisableableCredentialTypes");
         return Collections.EMPTY_SET;
     }
 }
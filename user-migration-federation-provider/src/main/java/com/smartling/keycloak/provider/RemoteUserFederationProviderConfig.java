@@ -0,0 +1,361 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typed view of a remote user federation component's configuration.
+ *
+ * Missing or malformed values fall back to their defaults, so a component
+ * saved before an option existed keeps its original behaviour.
+ */
+public class RemoteUserFederationProviderConfig {
+
+    public static final String BASE_URI = "base_uri";
+    public static final String BACKENDS = "backends";
+    public static final String CLUSTER_CACHE_ENABLED = "cluster_cache_enabled";
+    public static final String NOT_FOUND_TTL = "not_found_ttl";
+    public static final String SNAPSHOT_TTL = "snapshot_ttl";
+    public static final String MIGRATION_LOCK_TTL = "migration_lock_ttl";
+    public static final String MIGRATION_WAIT = "migration_wait";
+    public static final String TRACING_ENABLED = "tracing_enabled";
+    public static final String TRACING_FILE = "tracing_file";
+    public static final String TRACING_SECRET = "tracing_secret";
+    public static final String AUDIT_LOG_FILE = "audit_log_file";
+    public static final String AUDIT_LOG_MAX_SIZE = "audit_log_max_size";
+    public static final String AUDIT_LOG_MAX_FILES = "audit_log_max_files";
+    public static final String SEARCH_ENABLED = "search_enabled";
+    public static final String SEARCH_PAGE_SIZE = "search_page_size";
+    public static final String SEARCH_MAX_RESULTS = "search_max_results";
+    public static final String SEARCH_COUNT_TTL = "search_count_ttl";
+    public static final String CONNECTION_POOL_SIZE = "connection_pool_size";
+    public static final String WARM_UP_ENABLED = "warm_up_enabled";
+    public static final String WARM_UP_CONNECTIONS = "warm_up_connections";
+    public static final String WARM_UP_TIMEOUT = "warm_up_timeout";
+    public static final String COMPRESSION_ENABLED = "compression_enabled";
+    public static final String PAYLOAD_ENCODING = "payload_encoding";
+    public static final String REFRESH_INTERVAL = "refresh_interval";
+    public static final String PRE_MIGRATION_FILE = "pre_migration_file";
+    public static final String PRE_MIGRATION_BATCH_SIZE = "pre_migration_batch_size";
+    public static final String PRE_MIGRATION_PARALLELISM = "pre_migration_parallelism";
+    public static final String MAX_RETRIES = "max_retries";
+    public static final String RETRY_BASE_DELAY = "retry_base_delay";
+    public static final String RETRY_MAX_DELAY = "retry_max_delay";
+    public static final String RETRY_BUDGET = "retry_budget";
+    public static final String DRAIN_MODE = "drain_mode";
+
+    /**
+     * Name of the only backend of a component that lists no {@link #BACKENDS}.
+     */
+    public static final String DEFAULT_BACKEND = "default";
+
+    public static final String ENCODING_JSON = "json";
+    public static final String ENCODING_CBOR = "cbor";
+
+    static final int DEFAULT_NOT_FOUND_TTL = 60;
+    static final int DEFAULT_SNAPSHOT_TTL = 30;
+    static final int DEFAULT_MIGRATION_LOCK_TTL = 30;
+    static final int DEFAULT_LOG_MAX_SIZE = 100;
+    static final int DEFAULT_LOG_MAX_FILES = 10;
+    static final int DEFAULT_SEARCH_PAGE_SIZE = 100;
+    static final int DEFAULT_SEARCH_MAX_RESULTS = 1000;
+    static final int DEFAULT_SEARCH_COUNT_TTL = 60;
+    static final int DEFAULT_CONNECTION_POOL_SIZE = 20;
+    static final int DEFAULT_WARM_UP_CONNECTIONS = 4;
+    static final int DEFAULT_WARM_UP_TIMEOUT = 10;
+    static final int DEFAULT_REFRESH_INTERVAL = 0;
+    static final int DEFAULT_PRE_MIGRATION_BATCH_SIZE = 100;
+    static final int DEFAULT_PRE_MIGRATION_PARALLELISM = 4;
+    static final int DEFAULT_MAX_RETRIES = 2;
+    static final int DEFAULT_RETRY_BASE_DELAY = 50;
+    static final int DEFAULT_RETRY_MAX_DELAY = 1000;
+    static final int DEFAULT_RETRY_BUDGET = 10;
+
+    private final MultivaluedHashMap<String, String> config;
+
+    public RemoteUserFederationProviderConfig(ComponentModel model) {
+        MultivaluedHashMap<String, String> config = model != null ? model.getConfig() : null;
+        this.config = config != null ? config : new MultivaluedHashMap<String, String>();
+    }
+
+    public String getBaseUri() {
+        return get(BASE_URI);
+    }
+
+    /**
+     * Legacy API base URIs by backend name, in order of precedence, parsed from
+     * {@code name=uri} entries. A component without entries has a single
+     * {@value #DEFAULT_BACKEND} backend at its base URI.
+     */
+    public Map<String, String> getBackends() {
+        Map<String, String> backends = new LinkedHashMap<>();
+        List<String> entries = config.get(BACKENDS);
+        if (entries != null) {
+            for (String entry : entries) {
+                int separator = entry != null ? entry.indexOf('=') : -1;
+                if (separator <= 0) continue;
+
+                String name = entry.substring(0, separator).trim();
+                String uri = entry.substring(separator + 1).trim();
+                if (!name.isEmpty() && !uri.isEmpty() && !backends.containsKey(name)) backends.put(name, uri);
+            }
+        }
+
+        String baseUri = getBaseUri();
+        if (backends.isEmpty() && baseUri != null && !baseUri.isEmpty()) backends.put(DEFAULT_BACKEND, baseUri);
+        return backends;
+    }
+
+    public boolean isClusterCacheEnabled() {
+        return getBoolean(CLUSTER_CACHE_ENABLED, false);
+    }
+
+    /**
+     * Seconds a legacy "user not found" answer is remembered cluster-wide.
+     */
+    public int getNotFoundTtl() {
+        return getInt(NOT_FOUND_TTL, DEFAULT_NOT_FOUND_TTL);
+    }
+
+    /**
+     * Seconds a fetched legacy user snapshot is shared cluster-wide.
+     */
+    public int getSnapshotTtl() {
+        return getInt(SNAPSHOT_TTL, DEFAULT_SNAPSHOT_TTL);
+    }
+
+    /**
+     * Upper bound, in seconds, on how long an in-progress migration marker
+     * survives if the owning node never completes its transaction.
+     */
+    public int getMigrationLockTtl() {
+        return getInt(MIGRATION_LOCK_TTL, DEFAULT_MIGRATION_LOCK_TTL);
+    }
+
+    /**
+     * Seconds a lookup waits for another session to finish importing the same
+     * user; defaults to the migration lock TTL, after which the claim lapses.
+     */
+    public int getMigrationWait() {
+        return getInt(MIGRATION_WAIT, getMigrationLockTtl());
+    }
+
+    public boolean isTracingEnabled() {
+        return getBoolean(TRACING_ENABLED, false);
+    }
+
+    /**
+     * File spans are appended to, or null to write them to the
+     * {@value LoggingSpanExporter#CATEGORY} log category.
+     */
+    public String getTracingFile() {
+        String file = get(TRACING_FILE);
+        return file == null || file.isEmpty() ? null : file;
+    }
+
+    /**
+     * Secret usernames are keyed with before being recorded on spans, or null
+     * to record no username identifier at all.
+     */
+    public String getTracingSecret() {
+        String secret = get(TRACING_SECRET);
+        return secret == null || secret.isEmpty() ? null : secret;
+    }
+
+    /**
+     * File migration events are appended to, or null if auditing is disabled.
+     */
+    public String getAuditLogFile() {
+        String file = get(AUDIT_LOG_FILE);
+        return file == null || file.isEmpty() ? null : file;
+    }
+
+    /**
+     * Size, in megabytes, at which the audit log is rotated.
+     */
+    public int getAuditLogMaxSize() {
+        return getInt(AUDIT_LOG_MAX_SIZE, DEFAULT_LOG_MAX_SIZE);
+    }
+
+    /**
+     * Number of rotated audit log files to keep.
+     */
+    public int getAuditLogMaxFiles() {
+        return getInt(AUDIT_LOG_MAX_FILES, DEFAULT_LOG_MAX_FILES);
+    }
+
+    /**
+     * Whether admin console and API searches also query the legacy system.
+     */
+    public boolean isSearchEnabled() {
+        return getBoolean(SEARCH_ENABLED, true);
+    }
+
+    /**
+     * Largest number of users requested from the legacy system in one search call.
+     */
+    public int getSearchPageSize() {
+        return Math.max(1, getInt(SEARCH_PAGE_SIZE, DEFAULT_SEARCH_PAGE_SIZE));
+    }
+
+    /**
+     * Largest number of legacy users read for one search, including unbounded
+     * listings such as the admin console's "View all users".
+     */
+    public int getSearchMaxResults() {
+        return Math.max(0, getInt(SEARCH_MAX_RESULTS, DEFAULT_SEARCH_MAX_RESULTS));
+    }
+
+    /**
+     * Seconds a legacy user count is reused before asking the legacy system again.
+     */
+    public int getSearchCountTtl() {
+        return getInt(SEARCH_COUNT_TTL, DEFAULT_SEARCH_COUNT_TTL);
+    }
+
+    /**
+     * Maximum number of pooled connections to the legacy API.
+     */
+    public int getConnectionPoolSize() {
+        return Math.max(1, getInt(CONNECTION_POOL_SIZE, DEFAULT_CONNECTION_POOL_SIZE));
+    }
+
+    public boolean isWarmUpEnabled() {
+        return getBoolean(WARM_UP_ENABLED, false);
+    }
+
+    /**
+     * Number of connections to open to the legacy API during warm-up.
+     */
+    public int getWarmUpConnections() {
+        return getInt(WARM_UP_CONNECTIONS, DEFAULT_WARM_UP_CONNECTIONS);
+    }
+
+    /**
+     * Seconds the warm-up of one component may take.
+     */
+    public int getWarmUpTimeout() {
+        return getInt(WARM_UP_TIMEOUT, DEFAULT_WARM_UP_TIMEOUT);
+    }
+
+    /**
+     * Whether the legacy API is asked for gzip compressed responses.
+     */
+    public boolean isCompressionEnabled() {
+        return getBoolean(COMPRESSION_ENABLED, true);
+    }
+
+    /**
+     * Whether the legacy API is asked for CBOR rather than plain JSON responses.
+     */
+    public boolean isCborEnabled() {
+        return ENCODING_CBOR.equalsIgnoreCase(get(PAYLOAD_ENCODING));
+    }
+
+    /**
+     * Minimum seconds between re-checks of an imported, not yet migrated user
+     * against the legacy API, or 0 to never re-check.
+     */
+    public int getRefreshInterval() {
+        return getInt(REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL);
+    }
+
+    /**
+     * File listing the usernames to import ahead of their first login, one per
+     * line, or null if there is none.
+     */
+    public String getPreMigrationFile() {
+        String file = get(PRE_MIGRATION_FILE);
+        return file == null || file.isEmpty() ? null : file;
+    }
+
+    /**
+     * Number of users fetched from the legacy API in one pre-migration request.
+     */
+    public int getPreMigrationBatchSize() {
+        return Math.max(1, getInt(PRE_MIGRATION_BATCH_SIZE, DEFAULT_PRE_MIGRATION_BATCH_SIZE));
+    }
+
+    /**
+     * Number of pre-migration batches fetched and imported at the same time.
+     */
+    public int getPreMigrationParallelism() {
+        return Math.max(1, getInt(PRE_MIGRATION_PARALLELISM, DEFAULT_PRE_MIGRATION_PARALLELISM));
+    }
+
+    /**
+     * Largest number of times a failed idempotent lookup is retried, or 0 to never retry.
+     */
+    public int getMaxRetries() {
+        return Math.max(0, getInt(MAX_RETRIES, DEFAULT_MAX_RETRIES));
+    }
+
+    /**
+     * Milliseconds the delay before the first retry is drawn from; doubled for each further retry.
+     */
+    public int getRetryBaseDelay() {
+        return Math.max(0, getInt(RETRY_BASE_DELAY, DEFAULT_RETRY_BASE_DELAY));
+    }
+
+    /**
+     * Upper bound, in milliseconds, of the delay before a retry.
+     */
+    public int getRetryMaxDelay() {
+        return Math.max(0, getInt(RETRY_MAX_DELAY, DEFAULT_RETRY_MAX_DELAY));
+    }
+
+    /**
+     * Retries allowed as a percentage of recent requests to one backend.
+     */
+    public int getRetryBudget() {
+        return Math.max(0, getInt(RETRY_BUDGET, DEFAULT_RETRY_BUDGET));
+    }
+
+    /**
+     * Whether only users already linked to the component are served, without
+     * looking up or importing any other user.
+     */
+    public boolean isDrainMode() {
+        return getBoolean(DRAIN_MODE, false);
+    }
+
+    protected String get(String name) {
+        String value = config.getFirst(name);
+        return value != null ? value.trim() : null;
+    }
+
+    protected boolean getBoolean(String name, boolean defaultValue) {
+        String value = get(name);
+        return value == null || value.isEmpty() ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    protected int getInt(String name, int defaultValue) {
+        String value = get(name);
+        if (value == null || value.isEmpty()) return defaultValue;
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+}
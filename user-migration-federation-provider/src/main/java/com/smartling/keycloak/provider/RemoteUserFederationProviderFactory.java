@@ -20,36 +20,244 @@ import org.keycloak.Config.Scope;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Remote user federation provider factory.
  *
  * @author Scott Rossillo
  */
-public class RemoteUserFederationProviderFactory implements UserStorageProviderFactory<RemoteUserFederationProvider> {
+public class RemoteUserFederationProviderFactory implements UserStorageProviderFactory<RemoteUserFederationProvider>, ImportSynchronization {
     private static final Logger LOG = Logger.getLogger(RemoteUserFederationProviderFactory.class);
     
     public static final String PROVIDER_NAME = "User Migration API Provider";
 
     protected static final List<ProviderConfigProperty> configMetadata;
 
+    private static final String LOG_TRACER = "";
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private final ConcurrentMap<String, ComponentResources> components = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Tracer> tracers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AsyncFileAppender> appenders = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MigrationProgress> progress = new ConcurrentHashMap<>();
+
+    private volatile KeycloakSessionFactory sessionFactory;
+    private volatile ResourceBudget budget;
+
     static {
         configMetadata = ProviderConfigurationBuilder.create()
-                .property().name("base_uri")
+                .property().name(RemoteUserFederationProviderConfig.BASE_URI)
                 .type(ProviderConfigProperty.STRING_TYPE)
                 .label("Base URI")
                 .helpText("User Validation Host Base URI")
-                .add().build();
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.BACKENDS)
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .label("Legacy Backends")
+                .helpText("Several legacy user APIs as name=uri entries, queried in parallel; a user found in more than one is taken from the first listed. Overrides the base URI")
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.CLUSTER_CACHE_ENABLED)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Cluster Lookup Cache")
+                .helpText("Share not-found results, legacy user snapshots and in-progress migrations across the cluster")
+                .defaultValue("false")
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.NOT_FOUND_TTL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Not Found TTL")
+                .helpText("Seconds to remember that a user does not exist in the legacy system")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_NOT_FOUND_TTL))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.SNAPSHOT_TTL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Snapshot TTL")
+                .helpText("Seconds to share a fetched legacy user across the cluster")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_SNAPSHOT_TTL))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.MIGRATION_LOCK_TTL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Migration Lock TTL")
+                .helpText("Maximum seconds a node may hold exclusive rights to import a user")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_MIGRATION_LOCK_TTL))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.MIGRATION_WAIT)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Migration Wait")
+                .helpText("Maximum seconds a login waits for another node importing the same user; defaults to the Migration Lock TTL")
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.TRACING_ENABLED)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Tracing")
+                .helpText("Record spans for provider and legacy API calls and send W3C traceparent headers to the legacy API")
+                .defaultValue("false")
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.TRACING_FILE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Tracing File")
+                .helpText("File to append spans to as JSON lines; leave empty to log them under " + LoggingSpanExporter.CATEGORY)
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.TRACING_SECRET)
+                .type(ProviderConfigProperty.PASSWORD)
+                .label("Tracing Secret")
+                .helpText("Secret usernames are keyed with (HMAC-SHA256) before being recorded on spans; leave empty to record no username identifier")
+                .secret(true)
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.AUDIT_LOG_FILE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Audit Log File")
+                .helpText("File to append migration events to as JSON lines; leave empty to disable the audit log")
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.AUDIT_LOG_MAX_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Audit Log Max Size")
+                .helpText("Size in megabytes at which the audit log is rotated")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_LOG_MAX_SIZE))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.AUDIT_LOG_MAX_FILES)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Audit Log Max Files")
+                .helpText("Number of rotated audit log files to keep")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_LOG_MAX_FILES))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.SEARCH_ENABLED)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Search Legacy Users")
+                .helpText("Include users that have not been migrated yet in admin console and API searches")
+                .defaultValue("true")
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.SEARCH_PAGE_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Search Page Size")
+                .helpText("Maximum number of users requested from the legacy API per search call")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_SEARCH_PAGE_SIZE))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.SEARCH_MAX_RESULTS)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Search Max Results")
+                .helpText("Maximum number of legacy users read for one search or listing, however many are asked for")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_SEARCH_MAX_RESULTS))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.SEARCH_COUNT_TTL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Search Count TTL")
+                .helpText("Seconds to reuse a legacy user count and where a search page ended")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_SEARCH_COUNT_TTL))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.CONNECTION_POOL_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Connection Pool Size")
+                .helpText("Maximum number of pooled connections to the legacy API; when legacy hosts are shared across components, the most of a host's calls this component may use")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_CONNECTION_POOL_SIZE))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.WARM_UP_ENABLED)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Warm Up")
+                .helpText("Build the legacy API client, open connections and load realm roles when Keycloak starts")
+                .defaultValue("false")
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.WARM_UP_CONNECTIONS)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Warm Up Connections")
+                .helpText("Number of connections to the legacy API to open during warm-up")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_WARM_UP_CONNECTIONS))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.WARM_UP_TIMEOUT)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Warm Up Timeout")
+                .helpText("Seconds the warm-up of this component may delay startup")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_WARM_UP_TIMEOUT))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.COMPRESSION_ENABLED)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Compression")
+                .helpText("Ask the legacy API for gzip compressed responses")
+                .defaultValue("true")
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.PAYLOAD_ENCODING)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label("Payload Encoding")
+                .helpText("Ask the legacy API for CBOR encoded responses; servers without CBOR support answer in JSON")
+                .options(RemoteUserFederationProviderConfig.ENCODING_JSON, RemoteUserFederationProviderConfig.ENCODING_CBOR)
+                .defaultValue(RemoteUserFederationProviderConfig.ENCODING_JSON)
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.PRE_MIGRATION_FILE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pre-migration File")
+                .helpText("File with one username per line to import when users are synchronized, ahead of their first login")
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.PRE_MIGRATION_BATCH_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pre-migration Batch Size")
+                .helpText("Number of users fetched from the legacy API in one pre-migration request")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_PRE_MIGRATION_BATCH_SIZE))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.PRE_MIGRATION_PARALLELISM)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Pre-migration Parallelism")
+                .helpText("Number of pre-migration batches fetched and imported at the same time")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_PRE_MIGRATION_PARALLELISM))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.MAX_RETRIES)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Max Retries")
+                .helpText("Times a user lookup that failed with a connection error or a 502, 503 or 504 is retried; password checks are never retried")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_MAX_RETRIES))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.RETRY_BASE_DELAY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Retry Base Delay")
+                .helpText("Milliseconds of randomized delay before the first retry, doubled for each further retry")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_RETRY_BASE_DELAY))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.RETRY_MAX_DELAY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Retry Max Delay")
+                .helpText("Upper bound, in milliseconds, of the delay before a retry")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_RETRY_MAX_DELAY))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.RETRY_BUDGET)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Retry Budget")
+                .helpText("Retries allowed as a percentage of the requests of the last 10 seconds, so an outage is not amplified")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_RETRY_BUDGET))
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.DRAIN_MODE)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Drain Mode")
+                .helpText("Only check passwords of users that were already imported; all other lookups are answered locally without calling the legacy API")
+                .defaultValue("false")
+                .add()
+                .property().name(RemoteUserFederationProviderConfig.REFRESH_INTERVAL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Refresh Interval")
+                .helpText("Seconds between conditional re-checks of imported users against the legacy API; 0 disables refreshing")
+                .defaultValue(String.valueOf(RemoteUserFederationProviderConfig.DEFAULT_REFRESH_INTERVAL))
+                .add()
+                .build();
     }
 
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
-        LOG.warn("Returning configuration options");
+        LOG.debug("Returning configuration options");
         return configMetadata;
     }
 
@@ -60,7 +268,124 @@ public class RemoteUserFederationProviderFactory implements UserStorageProviderF
 
     @Override
     public RemoteUserFederationProvider create(KeycloakSession session, ComponentModel model) {
-        return new RemoteUserFederationProvider(session, model, model.getConfig().getFirst("base_uri"));
+        // released when Keycloak closes the provider at the end of the session
+        ComponentResources resources = getResources(model);
+        while (!resources.retain()) {
+            resources = getResources(model);
+        }
+
+        try {
+            return new RemoteUserFederationProvider(session, model, resources);
+        } catch (RuntimeException ex) {
+            resources.release();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        evict(newModel);
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        evict(model);
+
+        MigrationProgress migrationProgress = progress.remove(String.valueOf(model.getId()));
+        if (migrationProgress != null) migrationProgress.close();
+    }
+
+    // The next session builds new resources; the old ones are closed once sessions using them are over
+    private void evict(ComponentModel model) {
+        ComponentResources resources;
+        synchronized (components) {
+            resources = components.remove(String.valueOf(model.getId()));
+        }
+        if (resources != null) resources.retire();
+    }
+
+    // Resources are rebuilt whenever the component's configuration is edited
+    ComponentResources getResources(ComponentModel model) {
+        String key = String.valueOf(model.getId());
+        ComponentResources resources = components.get(key);
+        if (resources == null || !resources.isConfiguredBy(model)) {
+            synchronized (components) {
+                resources = components.get(key);
+                if (resources == null || !resources.isConfiguredBy(model)) {
+                    if (resources != null) resources.retire();
+
+                    RemoteUserFederationProviderConfig config = new RemoteUserFederationProviderConfig(model);
+                    resources = new ComponentResources(model, getTracer(config), getAuditLog(model, config), getProgress(model), budget);
+                    components.put(key, resources);
+
+                    // count once, so operators can follow the migration before deciding to drain
+                    if (sessionFactory != null && !resources.getMigrationProgress().isCounted()) {
+                        new LinkedUserCount(sessionFactory, model, resources.getMigrationProgress()).start();
+                    }
+                }
+            }
+        }
+        return resources;
+    }
+
+    // Progress outlives configuration changes, such as switching drain mode on, so users are counted once
+    private MigrationProgress getProgress(ComponentModel model) {
+        String key = String.valueOf(model.getId());
+        MigrationProgress migrationProgress = progress.get(key);
+        if (migrationProgress == null) {
+            MigrationProgress created = new MigrationProgress(key);
+            migrationProgress = progress.putIfAbsent(key, created);
+            if (migrationProgress == null) {
+                migrationProgress = created;
+                migrationProgress.publish();
+            }
+        }
+        return migrationProgress;
+    }
+
+    private MigrationAuditLog getAuditLog(ComponentModel model, RemoteUserFederationProviderConfig config) {
+        String file = config.getAuditLogFile();
+        if (file == null) return MigrationAuditLog.DISABLED;
+
+        return new MigrationAuditLog(getAppender(file, config.getAuditLogMaxSize() * MEGABYTE, config.getAuditLogMaxFiles()), model.getId());
+    }
+
+    /*
+     * One background writer per file, whichever component asks for it first decides its rotation.
+     * Every caller retains it, and it is closed when the last one releases it: when the last
+     * component writing to the file is removed or changes its file.
+     */
+    private AsyncFileAppender getAppender(String file, long maxBytes, int maxFiles) {
+        synchronized (appenders) {
+            AsyncFileAppender appender = appenders.get(file);
+            if (appender == null || !appender.retain()) {
+                appender = new AsyncFileAppender(file, maxBytes, maxFiles);
+                appender.retain();
+                appenders.put(file, appender);
+            }
+            return appender;
+        }
+    }
+
+    // Components writing to the same destination share one tracer and exporter
+    private Tracer getTracer(RemoteUserFederationProviderConfig config) {
+        if (!config.isTracingEnabled()) return Tracer.DISABLED;
+
+        String file = config.getTracingFile();
+        String key = file != null ? file : LOG_TRACER;
+        Tracer tracer = tracers.get(key);
+        if (tracer == null) {
+            Tracer created = new Tracer(file != null
+                    ? new FileSpanExporter(getAppender(file, RemoteUserFederationProviderConfig.DEFAULT_LOG_MAX_SIZE * MEGABYTE, RemoteUserFederationProviderConfig.DEFAULT_LOG_MAX_FILES))
+                    : new LoggingSpanExporter());
+            tracer = tracers.putIfAbsent(key, created);
+            if (tracer == null) {
+                tracer = created;
+            } else {
+                created.close();
+            }
+        }
+        return tracer;
     }
 
     @Override
@@ -75,17 +400,123 @@ public class RemoteUserFederationProviderFactory implements UserStorageProviderF
 
     @Override
     public void init(Scope config) {
-        // no-op
+        // connections and threads to each legacy host are shared by all components, however many realms use it
+        budget = ResourceBudget.from(config);
     }
 
     @Override
-    public void postInit(KeycloakSessionFactory factory) {
-        // no-op
+    public void postInit(final KeycloakSessionFactory factory) {
+        this.sessionFactory = factory;
+
+        // Realms can only be read once Keycloak has migrated its database
+        factory.register(new ProviderEventListener() {
+            @Override
+            public void onEvent(ProviderEvent event) {
+                if (event instanceof PostMigrationEvent) warmUp(factory);
+            }
+        });
+    }
+
+    /*
+     * Prepares every component that asks for it so the first logins after a restart don't pay
+     * for it. Components warm up in parallel, each on a thread of its own, so neither server
+     * startup nor the other components wait for a slow legacy API.
+     */
+    private void warmUp(KeycloakSessionFactory factory) {
+        List<ComponentModel> warmUp = new ArrayList<>();
+
+        KeycloakSession session = factory.create();
+        try {
+            session.getTransactionManager().begin();
+            for (RealmModel realm : session.realms().getRealms()) {
+                for (ComponentModel component : realm.getComponents(realm.getId(), UserStorageProvider.class.getName())) {
+                    if (!getId().equals(component.getProviderId())) continue;
+                    if (!new RemoteUserFederationProviderConfig(component).isWarmUpEnabled()) continue;
+
+                    // caches the default roles every imported user is granted
+                    for (String role : realm.getDefaultRoles()) {
+                        realm.getRole(role);
+                    }
+                    warmUp.add(component);
+                }
+            }
+            session.getTransactionManager().commit();
+        } catch (RuntimeException ex) {
+            LOG.warnf("Unable to read components to warm up: %s", ex.getMessage());
+            if (session.getTransactionManager().isActive()) session.getTransactionManager().rollback();
+        } finally {
+            session.close();
+        }
+
+        for (final ComponentModel component : warmUp) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    warmUp(component);
+                }
+            }, "user-migration-warm-up-" + component.getId());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void warmUp(ComponentModel component) {
+        long start = System.nanoTime();
+        ComponentResources resources = getResources(component);
+        if (!resources.retain()) return;
+
+        RemoteUserFederationProviderConfig config = resources.getConfig();
+        int connections;
+        try {
+            connections = resources.warmUp(config.getWarmUpConnections(), config.getWarmUpTimeout(), TimeUnit.SECONDS);
+        } catch (RuntimeException ex) {
+            LOG.warnf("Unable to warm up %s: %s", component.getName(), ex.getMessage());
+            return;
+        } finally {
+            resources.release();
+        }
+        LOG.infof("Warmed up %s (%s): %d/%d connections in %d ms", component.getName(), config.getBackends().values(),
+                connections, config.getWarmUpConnections(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // Synchronizing users pre-migrates the users listed in the component's pre-migration file
+
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        if (new RemoteUserFederationProviderConfig(model).isDrainMode()) return SynchronizationResult.ignored();
+
+        return new PreMigrationJob(sessionFactory, this, realmId, model).run();
+    }
+
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        // the file may have been extended since; users imported before are skipped without a legacy request
+        return sync(sessionFactory, realmId, model);
     }
 
     @Override
     public void close() {
-        // no-op
+        for (ComponentResources resources : components.values()) {
+            resources.close();
+        }
+        components.clear();
+
+        if (budget != null) budget.close();
+
+        for (Tracer tracer : tracers.values()) {
+            tracer.close();
+        }
+        tracers.clear();
+
+        for (AsyncFileAppender appender : appenders.values()) {
+            appender.close();
+        }
+        appenders.clear();
+
+        for (MigrationProgress migrationProgress : progress.values()) {
+            migrationProgress.close();
+        }
+        progress.clear();
     }
 
     // Removed in 2.5.0
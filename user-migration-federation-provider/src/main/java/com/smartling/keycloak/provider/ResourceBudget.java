@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config.Scope;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connections, concurrent calls and fan-out threads shared by every component
+ * of the provider factory, so that adding realms does not multiply the load on
+ * a legacy system or the connections and threads held by each Keycloak node.
+ *
+ * Limits apply per legacy host, identified by scheme, host and port, and are
+ * read from the provider's SPI configuration:
+ * <ul>
+ * <li>{@value #HOST_CONNECTIONS}: pooled connections per host; sharing is off,
+ * and every component has a pool of its own, unless this is set above 0;</li>
+ * <li>{@value #HOST_CALLS}: concurrent calls per host, divided among components
+ * (see {@link LegacyHostBudget});</li>
+ * <li>{@value #CALL_QUEUE_TIMEOUT}: milliseconds a call may wait for its turn;</li>
+ * <li>{@value #FAN_OUT_THREADS}: threads querying the backends of components
+ * with several of them.</li>
+ * </ul>
+ */
+public class ResourceBudget {
+
+    private static final Logger LOG = Logger.getLogger(ResourceBudget.class);
+
+    public static final String HOST_CONNECTIONS = "hostConnections";
+    public static final String HOST_CALLS = "hostConcurrentCalls";
+    public static final String CALL_QUEUE_TIMEOUT = "callQueueTimeout";
+    public static final String FAN_OUT_THREADS = "fanOutThreads";
+
+    static final int DEFAULT_HOST_CONNECTIONS = 0;
+    static final int DEFAULT_CALL_QUEUE_TIMEOUT = 5000;
+    static final int DEFAULT_FAN_OUT_THREADS = 16;
+
+    private final int hostConnections;
+    private final int hostCalls;
+    private final long callQueueTimeout;
+    private final int fanOutThreads;
+    private final ConcurrentMap<String, LegacyHostBudget> hosts = new ConcurrentHashMap<>();
+
+    private ExecutorService fanOutExecutor;
+
+    public ResourceBudget(int hostConnections, int hostCalls, long callQueueTimeout, int fanOutThreads) {
+        this.hostConnections = hostConnections;
+        this.hostCalls = hostCalls;
+        this.callQueueTimeout = callQueueTimeout;
+        this.fanOutThreads = fanOutThreads;
+    }
+
+    /**
+     * Reads the budget from the provider's SPI configuration; returns null if
+     * sharing is disabled.
+     */
+    public static ResourceBudget from(Scope config) {
+        int connections = config != null ? config.getInt(HOST_CONNECTIONS, DEFAULT_HOST_CONNECTIONS) : DEFAULT_HOST_CONNECTIONS;
+        if (connections <= 0) {
+            LOG.info("Legacy host budget disabled; each component uses its own connections");
+            return null;
+        }
+
+        int calls = config != null ? config.getInt(HOST_CALLS, connections) : connections;
+        long timeout = config != null ? config.getLong(CALL_QUEUE_TIMEOUT, (long) DEFAULT_CALL_QUEUE_TIMEOUT) : DEFAULT_CALL_QUEUE_TIMEOUT;
+        int threads = config != null ? config.getInt(FAN_OUT_THREADS, DEFAULT_FAN_OUT_THREADS) : DEFAULT_FAN_OUT_THREADS;
+
+        LOG.infof("Legacy host budget: %d connections and %d concurrent calls per host, %d fan-out threads", connections, calls, threads);
+        return new ResourceBudget(connections, Math.max(1, calls), Math.max(0, timeout), Math.max(1, threads));
+    }
+
+    /**
+     * Returns the budget of the host serving the given legacy API URI.
+     */
+    public LegacyHostBudget getHost(String uri) {
+        String key = hostKey(uri);
+        LegacyHostBudget host = hosts.get(key);
+        if (host == null) {
+            synchronized (hosts) {
+                host = hosts.get(key);
+                if (host == null) {
+                    host = new LegacyHostBudget(key, hostConnections, hostCalls, callQueueTimeout);
+                    hosts.put(key, host);
+                }
+            }
+        }
+        return host;
+    }
+
+    /**
+     * Returns the executor shared by components that query several backends at once.
+     */
+    public synchronized ExecutorService getFanOutExecutor() {
+        if (fanOutExecutor == null) fanOutExecutor = Executors.newFixedThreadPool(fanOutThreads, new FanOutThreadFactory());
+        return fanOutExecutor;
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (fanOutExecutor != null) fanOutExecutor.shutdownNow();
+            fanOutExecutor = null;
+        }
+        synchronized (hosts) {
+            for (LegacyHostBudget host : hosts.values()) {
+                host.close();
+            }
+            hosts.clear();
+        }
+    }
+
+    static String hostKey(String uri) {
+        URI parsed = URI.create(uri.trim());
+        String scheme = parsed.getScheme() != null ? parsed.getScheme().toLowerCase(Locale.ROOT) : "http";
+        int port = parsed.getPort() != -1 ? parsed.getPort() : "https".equals(scheme) ? 443 : 80;
+        String host = parsed.getHost() != null ? parsed.getHost().toLowerCase(Locale.ROOT) : "";
+        return scheme + "://" + host + ":" + port;
+    }
+
+    static class FanOutThreadFactory implements ThreadFactory {
+        private static final AtomicInteger COUNT = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "legacy-backend-" + COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds retries to a percentage of recent requests, so that retries absorb
+ * the odd transient failure but cannot multiply the load on a legacy API
+ * that is failing outright.
+ *
+ * Requests and retries are counted over a sliding window of one second
+ * slots. A few retries per window are always allowed so that a quiet
+ * component can still recover from a single failure.
+ */
+public class RetryBudget {
+
+    static final int WINDOW_SECONDS = 10;
+    static final int MIN_RETRIES_PER_WINDOW = 10;
+
+    private final int percent;
+    private final long[] requests = new long[WINDOW_SECONDS];
+    private final long[] retries = new long[WINDOW_SECONDS];
+    private long currentSecond = Long.MIN_VALUE;
+
+    public RetryBudget(int percent) {
+        this.percent = Math.max(0, percent);
+    }
+
+    public synchronized void recordRequest() {
+        requests[slot()]++;
+    }
+
+    /**
+     * Takes one retry from the budget; returns false if the budget is spent.
+     */
+    public synchronized boolean tryRetry() {
+        int slot = slot();
+        if (percent == 0) return false;
+
+        long recentRequests = 0;
+        long recentRetries = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            recentRequests += requests[i];
+            recentRetries += retries[i];
+        }
+
+        if (recentRetries >= MIN_RETRIES_PER_WINDOW && recentRetries * 100 >= recentRequests * percent) return false;
+
+        retries[slot]++;
+        return true;
+    }
+
+    // Clears the slots of the seconds that passed since the last call and returns the current one
+    private int slot() {
+        long second = TimeUnit.NANOSECONDS.toSeconds(nanoTime());
+        if (currentSecond == Long.MIN_VALUE) currentSecond = second;
+
+        long elapsed = second - currentSecond;
+        if (elapsed > 0) {
+            for (long i = 1; i <= Math.min(elapsed, WINDOW_SECONDS); i++) {
+                int stale = index(currentSecond + i);
+                requests[stale] = 0;
+                retries[stale] = 0;
+            }
+            currentSecond = second;
+        }
+        return index(currentSecond);
+    }
+
+    private static int index(long second) {
+        return (int) (((second % WINDOW_SECONDS) + WINDOW_SECONDS) % WINDOW_SECONDS);
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import com.smartling.keycloak.federation.FederatedUserService;
+import com.smartling.keycloak.federation.UserCredentialsDto;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.apache.http.HttpStatus;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+/**
+ * Retries idempotent lookups that fail transiently: connect and read failures
+ * and 502, 503 or 504 answers from the legacy API. Entity and mapping errors,
+ * which would fail the same way again, and calls the host budget turned away
+ * are not retried.
+ *
+ * Retries wait for an exponentially growing, fully jittered delay and are
+ * bounded by a {@link RetryBudget}, so an outage is not amplified into a
+ * retry storm. Password validation is never retried: whether a failed
+ * attempt reached the legacy system is unknown, and a repeated attempt could
+ * count twice against its lockout policy.
+ */
+public class RetryingFederatedUserService implements FederatedUserService {
+
+    private static final Logger LOG = Logger.getLogger(RetryingFederatedUserService.class);
+
+    private final FederatedUserService delegate;
+    private final RetryBudget budget;
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryingFederatedUserService(FederatedUserService delegate, RetryBudget budget, int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+        this.delegate = delegate;
+        this.budget = budget;
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    @Override
+    public FederatedUserModel getUserDetails(final String username) {
+        return retry("getUserDetails", new Attempt<FederatedUserModel>() {
+            @Override
+            public FederatedUserModel call() {
+                return delegate.getUserDetails(username);
+            }
+        });
+    }
+
+    @Override
+    public Response getUserDetailsIfChanged(final String username, final String version) {
+        return retry("getUserDetailsIfChanged", new ResponseAttempt() {
+            @Override
+            public Response call() {
+                return delegate.getUserDetailsIfChanged(username, version);
+            }
+        });
+    }
+
+    @Override
+    public List<FederatedUserModel> getUserDetailsBatch(List<String> usernames) {
+        // a batch is expensive and pre-migration counts failed batches itself
+        return delegate.getUserDetailsBatch(usernames);
+    }
+
+    @Override
+    public Response validateUserExists(final String username) {
+        return retry("validateUserExists", new ResponseAttempt() {
+            @Override
+            public Response call() {
+                return delegate.validateUserExists(username);
+            }
+        });
+    }
+
+    @Override
+    public Response validateLogin(String username, UserCredentialsDto passwordDto) {
+        return delegate.validateLogin(username, passwordDto);
+    }
+
+    @Override
+    public List<FederatedUserModel> searchUsers(String search, int first, int max) {
+        return delegate.searchUsers(search, first, max);
+    }
+
+    @Override
+    public Response countUsers(String search) {
+        return delegate.countUsers(search);
+    }
+
+    private <T> T retry(String operation, Attempt<T> attempt) {
+        budget.recordRequest();
+
+        for (int retry = 0; ; retry++) {
+            T result;
+            try {
+                result = attempt.call();
+            } catch (ProcessingException | WebApplicationException ex) {
+                if (!isTransient(ex) || !mayRetry(operation, retry, ex.toString())) throw ex;
+                continue;
+            }
+
+            if (!attempt.isTransientFailure(result) || !mayRetry(operation, retry, attempt.describe(result))) return result;
+            attempt.release(result);
+        }
+    }
+
+    // Waits before the given retry if the retry is allowed
+    private boolean mayRetry(String operation, int retry, String failure) {
+        if (retry >= maxRetries) return false;
+        if (!budget.tryRetry()) {
+            LOG.debugf("Not retrying %s after %s: retry budget spent", operation, failure);
+            return false;
+        }
+
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(retry, 20));
+        long delay = ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+        LOG.debugf("Retrying %s in %d ms after %s", operation, delay, failure);
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static boolean isTransient(RuntimeException ex) {
+        if (ex instanceof LegacyHostBudget.RejectedException) return false;
+        if (ex instanceof WebApplicationException) {
+            Response response = ((WebApplicationException) ex).getResponse();
+            return response != null && isTransientStatus(response.getStatus());
+        }
+        return isIoFailure(ex);
+    }
+
+    // Connect and read failures, e.g. refused connections or socket timeouts, but not unparseable entities
+    private static boolean isIoFailure(Throwable ex) {
+        for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof JsonProcessingException) return false;
+            if (cause instanceof IOException) return true;
+        }
+        return false;
+    }
+
+    static boolean isTransientStatus(int status) {
+        return status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_SERVICE_UNAVAILABLE || status == HttpStatus.SC_GATEWAY_TIMEOUT;
+    }
+
+    private abstract static class Attempt<T> {
+        abstract T call();
+
+        boolean isTransientFailure(T result) {
+            return false;
+        }
+
+        String describe(T result) {
+            return String.valueOf(result);
+        }
+
+        void release(T result) {
+            // nothing to release
+        }
+    }
+
+    private abstract static class ResponseAttempt extends Attempt<Response> {
+        @Override
+        boolean isTransientFailure(Response response) {
+            return response != null && isTransientStatus(response.getStatus());
+        }
+
+        @Override
+        String describe(Response response) {
+            return "status " + response.getStatus();
+        }
+
+        @Override
+        void release(Response response) {
+            response.close();
+        }
+    }
+}
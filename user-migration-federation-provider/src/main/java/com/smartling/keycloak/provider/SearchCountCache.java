@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Briefly remembers legacy user counts, and where search pages start in the
+ * legacy results, so that paging through search results neither recounts the
+ * legacy directory nor walks the earlier pages again for every page.
+ */
+public class SearchCountCache {
+
+    static final int MAX_ENTRIES = 1024;
+
+    // Offsets are kept apart from the counts of backends by a prefix no backend name has
+    private static final String OFFSET = "\u0001";
+
+    private final long ttlNanos;
+    private final ConcurrentMap<String, Entry> counts = new ConcurrentHashMap<>();
+
+    public SearchCountCache(int ttlSeconds) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    /**
+     * Returns the cached count for a search, or null if unknown or expired.
+     */
+    public Integer get(String search) {
+        return get(null, search);
+    }
+
+    /**
+     * Returns the cached count for a search of one legacy backend, or null if unknown or expired.
+     */
+    public Integer get(String backend, String search) {
+        String key = key(backend, search);
+        Entry entry = counts.get(key);
+        if (entry == null) return null;
+
+        if (System.nanoTime() - entry.created > ttlNanos) {
+            counts.remove(key, entry);
+            return null;
+        }
+        return entry.count;
+    }
+
+    public void put(String search, int count) {
+        put(null, search, count);
+    }
+
+    public void put(String backend, String search, int count) {
+        if (ttlNanos <= 0) return;
+
+        // searches are user input; never let them grow the cache without bound
+        if (counts.size() >= MAX_ENTRIES) counts.clear();
+        counts.put(key(backend, search), new Entry(count));
+    }
+
+    /**
+     * Returns the legacy result offset at which a search had listed {@code listed}
+     * unmigrated users, or null if unknown or expired.
+     */
+    public Integer getOffset(String search, int listed) {
+        return get(OFFSET + listed, search);
+    }
+
+    public void putOffset(String search, int listed, int offset) {
+        put(OFFSET + listed, search, offset);
+    }
+
+    private static String key(String backend, String search) {
+        String key = search != null ? search : "";
+        return backend != null ? backend + '\u0000' + key : key;
+    }
+
+    private static class Entry {
+        private final int count;
+        private final long created = System.nanoTime();
+
+        Entry(int count) {
+            this.count = count;
+        }
+    }
+}
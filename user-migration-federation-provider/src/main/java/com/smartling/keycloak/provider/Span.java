@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timed operation within a trace, identified the same way as a
+ * W3C Trace Context / OpenTelemetry span.
+ *
+ * Spans are created by a {@link Tracer} and must be ended on the thread
+ * that started them.
+ */
+public class Span {
+
+    /**
+     * Span handed out when tracing is disabled; records nothing.
+     */
+    static final Span NOOP = new Span(null, null, null, null, null) {
+        @Override
+        public Span setAttribute(String key, Object value) {
+            return this;
+        }
+
+        @Override
+        public Span setError(Throwable error) {
+            return this;
+        }
+
+        @Override
+        public void end() {
+            // no-op
+        }
+    };
+
+    private final Tracer tracer;
+    private final String name;
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final long startEpochNanos;
+    private final long startNanos;
+    private final Map<String, String> attributes = new LinkedHashMap<>();
+    private Span previous;
+    private long durationNanos = -1;
+    private String error;
+
+    Span(Tracer tracer, String name, String traceId, String spanId, String parentSpanId) {
+        this.tracer = tracer;
+        this.name = name;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.startEpochNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        this.startNanos = System.nanoTime();
+    }
+
+    public Span setAttribute(String key, Object value) {
+        attributes.put(key, String.valueOf(value));
+        return this;
+    }
+
+    public Span setError(Throwable error) {
+        this.error = error.getClass().getSimpleName();
+        return this;
+    }
+
+    /**
+     * Ends this span, restores its parent as the current span and exports it.
+     */
+    public void end() {
+        if (durationNanos >= 0) return;
+
+        durationNanos = System.nanoTime() - startNanos;
+        tracer.finish(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public long getStartEpochNanos() {
+        return startEpochNanos;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public Map<String, String> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Returns this span's context as a W3C {@code traceparent} header value.
+     */
+    public String getTraceParent() {
+        return "00-" + traceId + "-" + spanId + "-01";
+    }
+
+    /**
+     * Renders this span as a single line of JSON using OpenTelemetry field names.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"traceId\":\"").append(traceId)
+                .append("\",\"spanId\":\"").append(spanId).append('"');
+        if (parentSpanId != null) {
+            json.append(",\"parentSpanId\":\"").append(parentSpanId).append('"');
+        }
+        json.append(",\"name\":");
+        appendString(json, name);
+        json.append(",\"startTimeUnixNano\":").append(startEpochNanos)
+                .append(",\"endTimeUnixNano\":").append(startEpochNanos + durationNanos)
+                .append(",\"attributes\":{");
+        boolean first = true;
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            if (!first) json.append(',');
+            appendString(json, attribute.getKey());
+            json.append(':');
+            appendString(json, attribute.getValue());
+            first = false;
+        }
+        json.append("},\"status\":{\"code\":\"").append(error == null ? "OK" : "ERROR").append('"');
+        if (error != null) {
+            json.append(",\"message\":");
+            appendString(json, error);
+        }
+        return json.append("}}").toString();
+    }
+
+    static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    Span getPrevious() {
+        return previous;
+    }
+
+    void setPrevious(Span previous) {
+        this.previous = previous;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import java.io.IOException;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+
+/**
+ * Propagates the current span to the legacy API as a W3C {@code traceparent} header.
+ */
+public class TraceContextFilter implements ClientRequestFilter {
+
+    private final Tracer tracer;
+
+    public TraceContextFilter(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @Override
+    public void filter(ClientRequestContext requestContext) throws IOException {
+        Span span = tracer.current();
+        if (span != null) {
+            requestContext.getHeaders().putSingle(Tracer.TRACEPARENT, span.getTraceParent());
+        }
+    }
+}
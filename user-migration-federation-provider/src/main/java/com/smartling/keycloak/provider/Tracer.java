@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.jboss.logging.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Creates W3C Trace Context compatible spans and hands finished spans to a
+ * {@link SpanExporter}.
+ *
+ * The current span is tracked per thread, so nested calls on the same thread
+ * become child spans automatically.
+ */
+public class Tracer {
+
+    private static final Logger LOG = Logger.getLogger(Tracer.class);
+
+    public static final String TRACEPARENT = "traceparent";
+
+    /**
+     * Tracer used when tracing is disabled; every span is {@link Span#NOOP}.
+     */
+    public static final Tracer DISABLED = new Tracer(null);
+
+    private static final Pattern TRACEPARENT_FORMAT = Pattern.compile("[0-9a-f]{2}-[0-9a-f]{32}-[0-9a-f]{16}-[0-9a-f]{2}");
+    private static final String INVALID_TRACE_ID = "00000000000000000000000000000000";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final SpanExporter exporter;
+    private final ThreadLocal<Span> current = new ThreadLocal<>();
+
+    public Tracer(SpanExporter exporter) {
+        this.exporter = exporter;
+    }
+
+    public boolean isEnabled() {
+        return exporter != null;
+    }
+
+    /**
+     * Starts a span as a child of the current span on this thread.
+     */
+    public Span start(String name) {
+        return start(name, null);
+    }
+
+    /**
+     * Starts a span as a child of the current span on this thread or, if
+     * there is none, as a child of the given remote {@code traceparent}.
+     */
+    public Span start(String name, String remoteTraceParent) {
+        if (!isEnabled()) return Span.NOOP;
+
+        Span parent = current.get();
+        String traceId;
+        String parentSpanId;
+
+        if (parent != null) {
+            traceId = parent.getTraceId();
+            parentSpanId = parent.getSpanId();
+        } else if (isValidTraceParent(remoteTraceParent)) {
+            traceId = remoteTraceParent.substring(3, 35);
+            parentSpanId = remoteTraceParent.substring(36, 52);
+        } else {
+            traceId = randomHex(16);
+            parentSpanId = null;
+        }
+
+        Span span = new Span(this, name, traceId, randomHex(8), parentSpanId);
+        span.setPrevious(parent);
+        current.set(span);
+        return span;
+    }
+
+    /**
+     * Returns the span currently active on this thread, or null.
+     */
+    public Span current() {
+        return current.get();
+    }
+
+    /**
+     * Returns a task that runs with the span now current on this thread as its
+     * current span, so that calls it makes on another thread, such as an
+     * executor's, continue the same trace. The worker's own current span is
+     * restored when the task is done.
+     */
+    public <T> Callable<T> propagate(final Callable<T> task) {
+        if (!isEnabled()) return task;
+
+        final Span parent = current.get();
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                Span previous = current.get();
+                setCurrent(parent);
+                try {
+                    return task.call();
+                } finally {
+                    setCurrent(previous);
+                }
+            }
+        };
+    }
+
+    private void setCurrent(Span span) {
+        if (span != null) {
+            current.set(span);
+        } else {
+            current.remove();
+        }
+    }
+
+    void finish(Span span) {
+        if (current.get() == span) {
+            if (span.getPrevious() != null) {
+                current.set(span.getPrevious());
+            } else {
+                current.remove();
+            }
+        }
+
+        try {
+            exporter.export(span);
+        } catch (RuntimeException ex) {
+            LOG.debugf(ex, "Unable to export span %s", span.getName());
+        }
+    }
+
+    public void close() {
+        if (exporter != null) exporter.close();
+    }
+
+    /**
+     * Returns a stable identifier for a username so spans can be correlated
+     * without recording personal data. The identifier is an HMAC keyed with
+     * the deployment's secret, so it cannot be reversed by hashing guessed
+     * usernames or email addresses; without a secret, null is returned and
+     * no identifier should be recorded.
+     */
+    public static String hashUsername(String username, String secret) {
+        if (username == null || secret == null || secret.isEmpty()) return null;
+
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+            return toHex(mac.doFinal(username.getBytes(StandardCharsets.UTF_8)), 16);
+        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static boolean isValidTraceParent(String traceParent) {
+        return traceParent != null
+                && TRACEPARENT_FORMAT.matcher(traceParent).matches()
+                && !traceParent.startsWith("ff")
+                && !traceParent.substring(3, 35).equals(INVALID_TRACE_ID);
+    }
+
+    private static String randomHex(int bytes) {
+        byte[] random = new byte[bytes];
+        ThreadLocalRandom.current().nextBytes(random);
+        random[0] |= 1; // never all zeroes, which W3C treats as invalid
+        return toHex(random, bytes);
+    }
+
+    private static String toHex(byte[] bytes, int length) {
+        char[] hex = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
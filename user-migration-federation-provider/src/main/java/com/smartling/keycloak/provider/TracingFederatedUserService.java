@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import com.smartling.keycloak.federation.FederatedUserService;
+import com.smartling.keycloak.federation.UserCredentialsDto;
+
+import java.util.List;
+import javax.ws.rs.core.Response;
+
+/**
+ * Records a client span around every call to the legacy user service.
+ */
+public class TracingFederatedUserService implements FederatedUserService {
+
+    private final FederatedUserService delegate;
+    private final Tracer tracer;
+    private final String usernameSecret;
+
+    public TracingFederatedUserService(FederatedUserService delegate, Tracer tracer, String usernameSecret) {
+        this.delegate = delegate;
+        this.tracer = tracer;
+        this.usernameSecret = usernameSecret;
+    }
+
+    @Override
+    public FederatedUserModel getUserDetails(String username) {
+        Span span = start("FederatedUserService.getUserDetails", username);
+        try {
+            return delegate.getUserDetails(username);
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            throw ex;
+        } finally {
+            span.end();
+        }
+    }
+
+    @Override
+    public Response getUserDetailsIfChanged(String username, String version) {
+        Span span = start("FederatedUserService.getUserDetailsIfChanged", username);
+        try {
+            Response response = delegate.getUserDetailsIfChanged(username, version);
+            span.setAttribute("http.status_code", response.getStatus());
+            return response;
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            throw ex;
+        } finally {
+            span.end();
+        }
+    }
+
+    @Override
+    public List<FederatedUserModel> getUserDetailsBatch(List<String> usernames) {
+        Span span = tracer.start("FederatedUserService.getUserDetailsBatch")
+                .setAttribute("span.kind", "client")
+                .setAttribute("batch.size", usernames.size());
+        try {
+            List<FederatedUserModel> users = delegate.getUserDetailsBatch(usernames);
+            span.setAttribute("batch.results", users != null ? users.size() : 0);
+            return users;
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            throw ex;
+        } finally {
+            span.end();
+        }
+    }
+
+    @Override
+    public Response validateUserExists(String username) {
+        Span span = start("FederatedUserService.validateUserExists", username);
+        try {
+            Response response = delegate.validateUserExists(username);
+            span.setAttribute("http.status_code", response.getStatus());
+            return response;
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            throw ex;
+        } finally {
+            span.end();
+        }
+    }
+
+    @Override
+    public Response validateLogin(String username, UserCredentialsDto passwordDto) {
+        Span span = start("FederatedUserService.validateLogin", username);
+        try {
+            Response response = delegate.validateLogin(username, passwordDto);
+            span.setAttribute("http.status_code", response.getStatus());
+            return response;
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            throw ex;
+        } finally {
+            span.end();
+        }
+    }
+
+    @Override
+    public List<FederatedUserModel> searchUsers(String search, int first, int max) {
+        Span span = tracer.start("FederatedUserService.searchUsers")
+                .setAttribute("span.kind", "client")
+                .setAttribute("search.first", first)
+                .setAttribute("search.max", max);
+        try {
+            List<FederatedUserModel> users = delegate.searchUsers(search, first, max);
+            span.setAttribute("search.results", users != null ? users.size() : 0);
+            return users;
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            throw ex;
+        } finally {
+            span.end();
+        }
+    }
+
+    @Override
+    public Response countUsers(String search) {
+        Span span = tracer.start("FederatedUserService.countUsers").setAttribute("span.kind", "client");
+        try {
+            Response response = delegate.countUsers(search);
+            span.setAttribute("http.status_code", response.getStatus());
+            return response;
+        } catch (RuntimeException ex) {
+            span.setError(ex);
+            throw ex;
+        } finally {
+            span.end();
+        }
+    }
+
+    private Span start(String name, String username) {
+        Span span = tracer.start(name).setAttribute("span.kind", "client");
+        String hash = Tracer.hashUsername(username, usernameSecret);
+        return hash != null ? span.setAttribute("user.hash", hash) : span;
+    }
+}
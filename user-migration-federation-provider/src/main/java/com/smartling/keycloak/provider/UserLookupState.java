@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+
+/**
+ * State shared between lookups of legacy users, keyed by normalized username.
+ *
+ * @see InfinispanUserLookupState
+ */
+public interface UserLookupState {
+
+    /**
+     * State used when sharing is disabled: nothing is remembered and every
+     * migration may proceed.
+     */
+    UserLookupState NONE = new UserLookupState() {
+        @Override
+        public boolean isNotFound(String username) {
+            return false;
+        }
+
+        @Override
+        public void markNotFound(String username) {
+            // no-op
+        }
+
+        @Override
+        public FederatedUserModel getSnapshot(String username) {
+            return null;
+        }
+
+        @Override
+        public void putSnapshot(String username, FederatedUserModel user) {
+            // no-op
+        }
+
+        @Override
+        public boolean tryBeginMigration(String username) {
+            return true;
+        }
+    };
+
+    /**
+     * Returns true if the legacy system recently reported the user as unknown.
+     */
+    boolean isNotFound(String username);
+
+    void markNotFound(String username);
+
+    /**
+     * Returns a recently fetched legacy user, or null if none is available.
+     */
+    FederatedUserModel getSnapshot(String username);
+
+    void putSnapshot(String username, FederatedUserModel user);
+
+    /**
+     * Claims the right to import the given user. Returns false if another
+     * session is already importing it; the claim is released when the current
+     * Keycloak transaction completes.
+     */
+    boolean tryBeginMigration(String username);
+}
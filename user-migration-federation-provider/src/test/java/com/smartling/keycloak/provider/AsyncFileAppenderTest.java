@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Asynchronous file appender test cases.
+ */
+public class AsyncFileAppenderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendWritesLines() throws Exception {
+        File file = new File(folder.getRoot(), "audit.log");
+        AsyncFileAppender appender = new AsyncFileAppender(file.getPath(), 0, 0);
+
+        assertTrue(appender.append(line("first")));
+        assertTrue(appender.append(line("second")));
+        appender.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals("first", lines.get(0));
+        assertEquals("second", lines.get(1));
+    }
+
+    @Test
+    public void testRotatesBySize() throws Exception {
+        File file = new File(folder.getRoot(), "audit.log");
+        AsyncFileAppender appender = new AsyncFileAppender(file.getPath(), 10, 2);
+
+        for (int i = 0; i < 5; i++) {
+            appender.append(line("line-" + i));
+        }
+        appender.close();
+
+        assertEquals("line-4", Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).get(0));
+        assertEquals("line-3", Files.readAllLines(new File(file.getPath() + ".1").toPath(), StandardCharsets.UTF_8).get(0));
+        assertEquals("line-2", Files.readAllLines(new File(file.getPath() + ".2").toPath(), StandardCharsets.UTF_8).get(0));
+        assertFalse(new File(file.getPath() + ".3").exists());
+    }
+
+    @Test
+    public void testRotatesByEncodedSize() throws Exception {
+        File file = new File(folder.getRoot(), "audit.log");
+        AsyncFileAppender appender = new AsyncFileAppender(file.getPath(), 12, 1);
+
+        for (int i = 0; i < 3; i++) {
+            appender.append(line("\u00e9\u00e9"));
+        }
+        appender.close();
+
+        assertEquals(5, file.length());
+        assertEquals(10, new File(file.getPath() + ".1").length());
+    }
+
+    @Test
+    public void testCountsFailedWritesAsDropped() throws Exception {
+        AsyncFileAppender appender = new AsyncFileAppender(folder.getRoot().getPath(), 0, 0);
+
+        assertTrue(appender.append(line("first")));
+        assertTrue(appender.append(line("second")));
+        appender.close();
+
+        assertEquals(2, appender.getDroppedCount());
+    }
+
+    @Test
+    public void testDropsWhenClosed() throws Exception {
+        AsyncFileAppender appender = new AsyncFileAppender(new File(folder.getRoot(), "audit.log").getPath(), 0, 0);
+        appender.close();
+
+        assertFalse(appender.append(line("late")));
+        assertEquals(1, appender.getDroppedCount());
+    }
+
+    @Test
+    public void testClosedWhenLastUserReleases() throws Exception {
+        AsyncFileAppender appender = new AsyncFileAppender(new File(folder.getRoot(), "audit.log").getPath(), 0, 0);
+        assertTrue(appender.retain());
+        assertTrue(appender.retain());
+
+        appender.release();
+        assertFalse(appender.isClosed());
+
+        appender.release();
+        assertTrue(appender.isClosed());
+        assertFalse(appender.retain());
+    }
+
+    @Test
+    public void testMigrationEventLine() throws Exception {
+        MigrationEvent event = new MigrationEvent(MigrationEvent.Type.NOT_FOUND, "realm", "component", "wa+user@smartling.com", null);
+
+        String line = event.toLine();
+        assertTrue(line.contains("\"event\":\"NOT_FOUND\""));
+        assertTrue(line.contains("\"username\":\"wa+user@smartling.com\""));
+        assertFalse(line.contains("detail"));
+    }
+
+    private static AsyncFileAppender.Line line(final String text) {
+        return new AsyncFileAppender.Line() {
+            @Override
+            public String toLine() {
+                return text;
+            }
+        };
+    }
+}
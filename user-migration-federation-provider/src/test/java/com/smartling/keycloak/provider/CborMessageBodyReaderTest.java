@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.smartling.keycloak.federation.FederatedUserModel;
+import com.smartling.keycloak.federation.FederatedUserService;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import javax.ws.rs.core.MediaType;
+
+import static org.junit.Assert.*;
+
+/**
+ * CBOR message body reader test cases.
+ */
+public class CborMessageBodyReaderTest {
+
+    private static final MediaType CBOR = MediaType.valueOf(FederatedUserService.APPLICATION_CBOR);
+
+    private final CborMessageBodyReader reader = new CborMessageBodyReader();
+
+    @Test
+    public void testReadableOnlyForCbor() throws Exception {
+        assertTrue(reader.isReadable(FederatedUserModel.class, FederatedUserModel.class, new Annotation[0], CBOR));
+        assertFalse(reader.isReadable(FederatedUserModel.class, FederatedUserModel.class, new Annotation[0], MediaType.APPLICATION_JSON_TYPE));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReadsUserPage() throws Exception {
+        FederatedUserModel user = new FederatedUserModel();
+        user.setEmail("wa+user@smartling.com");
+        user.setEnabled(true);
+        byte[] body = new ObjectMapper(new CBORFactory()).writeValueAsBytes(Arrays.asList(user));
+
+        Method searchUsers = FederatedUserService.class.getMethod("searchUsers", String.class, int.class, int.class);
+        Class<Object> type = (Class<Object>) (Class<?>) List.class;
+        List<FederatedUserModel> page = (List<FederatedUserModel>) reader.readFrom(type, searchUsers.getGenericReturnType(),
+                new Annotation[0], CBOR, null, new ByteArrayInputStream(body));
+
+        assertEquals(1, page.size());
+        assertEquals("wa+user@smartling.com", page.get(0).getEmail());
+        assertTrue(page.get(0).isEnabled());
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import com.smartling.keycloak.federation.FederatedUserService;
+import com.smartling.keycloak.federation.UserCredentialsDto;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Composite federated user service test cases.
+ */
+public class CompositeFederatedUserServiceTest {
+
+    private static final String USERNAME = "wa+user@smartling.com";
+
+    private final FederatedUserService primary = mock(FederatedUserService.class);
+    private final FederatedUserService secondary = mock(FederatedUserService.class);
+
+    private ExecutorService executor;
+    private CompositeFederatedUserService service;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        Map<String, FederatedUserService> backends = new LinkedHashMap<>();
+        backends.put("primary", primary);
+        backends.put("secondary", secondary);
+        service = new CompositeFederatedUserService(backends, executor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testGetUserDetailsPrefersFirstBackend() throws Exception {
+        FederatedUserModel fromPrimary = user("Primary");
+        when(primary.getUserDetails(USERNAME)).thenReturn(fromPrimary);
+        when(secondary.getUserDetails(USERNAME)).thenReturn(user("Secondary"));
+
+        assertSame(fromPrimary, service.getUserDetails(USERNAME));
+    }
+
+    @Test
+    public void testGetUserDetailsFallsThroughMisses() throws Exception {
+        FederatedUserModel fromSecondary = user("Secondary");
+        when(primary.getUserDetails(USERNAME)).thenThrow(new NotFoundException());
+        when(secondary.getUserDetails(USERNAME)).thenReturn(fromSecondary);
+
+        assertSame(fromSecondary, service.getUserDetails(USERNAME));
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testGetUserDetailsNotFoundAnywhere() throws Exception {
+        when(primary.getUserDetails(USERNAME)).thenThrow(new NotFoundException());
+        when(secondary.getUserDetails(USERNAME)).thenThrow(new NotFoundException());
+
+        service.getUserDetails(USERNAME);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGetUserDetailsFailsIfPreferredBackendFails() throws Exception {
+        when(primary.getUserDetails(USERNAME)).thenThrow(new IllegalStateException("down"));
+        when(secondary.getUserDetails(USERNAME)).thenReturn(user("Secondary"));
+
+        service.getUserDetails(USERNAME);
+    }
+
+    @Test
+    public void testGetUserDetailsPassesOverUnavailableBackend() throws Exception {
+        FederatedUserModel fromSecondary = user("Secondary");
+        when(primary.getUserDetails(USERNAME)).thenThrow(new ProcessingException("Connection refused"));
+        when(secondary.getUserDetails(USERNAME)).thenReturn(fromSecondary);
+
+        assertSame(fromSecondary, service.getUserDetails(USERNAME));
+    }
+
+    @Test(expected = ServiceUnavailableException.class)
+    public void testGetUserDetailsFailsIfNoBackendKnowsUserAndOneFailed() throws Exception {
+        when(primary.getUserDetails(USERNAME)).thenThrow(new ServiceUnavailableException());
+        when(secondary.getUserDetails(USERNAME)).thenThrow(new NotFoundException());
+
+        service.getUserDetails(USERNAME);
+    }
+
+    @Test
+    public void testServerErrorDoesNotTakeOwnership() throws Exception {
+        UserCredentialsDto credentials = new UserCredentialsDto("secret");
+        Response unavailable = spy(Response.status(Status.SERVICE_UNAVAILABLE).build());
+        when(primary.validateUserExists(USERNAME)).thenReturn(unavailable);
+        when(secondary.validateUserExists(USERNAME)).thenReturn(Response.ok().build());
+        when(secondary.validateLogin(USERNAME, credentials)).thenReturn(Response.ok().build());
+
+        assertEquals(Status.OK.getStatusCode(), service.validateUserExists(USERNAME).getStatus());
+        verify(unavailable).close();
+        assertEquals(Status.OK.getStatusCode(), service.validateLogin(USERNAME, credentials).getStatus());
+        verify(primary, never()).validateLogin(anyString(), any(UserCredentialsDto.class));
+    }
+
+    @Test
+    public void testServerErrorWinsOverMisses() throws Exception {
+        Response notFound = spy(Response.status(Status.NOT_FOUND).build());
+        when(primary.validateUserExists(USERNAME)).thenReturn(notFound);
+        when(secondary.validateUserExists(USERNAME)).thenReturn(Response.status(Status.BAD_GATEWAY).build());
+
+        assertEquals(Status.BAD_GATEWAY.getStatusCode(), service.validateUserExists(USERNAME).getStatus());
+        verify(notFound).close();
+    }
+
+    @Test
+    public void testBackendsAreQueriedInParallel() throws Exception {
+        final CountDownLatch bothCalled = new CountDownLatch(2);
+        Answer<FederatedUserModel> awaitOther = new Answer<FederatedUserModel>() {
+            @Override
+            public FederatedUserModel answer(InvocationOnMock invocation) throws Throwable {
+                bothCalled.countDown();
+                if (!bothCalled.await(5, TimeUnit.SECONDS)) throw new IllegalStateException("backends called serially");
+                return user(invocation.getMock() == primary ? "Primary" : "Secondary");
+            }
+        };
+        when(primary.getUserDetails(USERNAME)).thenAnswer(awaitOther);
+        when(secondary.getUserDetails(USERNAME)).thenAnswer(awaitOther);
+
+        assertEquals("Primary", service.getUserDetails(USERNAME).getFirstName());
+    }
+
+    @Test
+    public void testLosingResponsesAreClosed() throws Exception {
+        Response exists = spy(Response.ok().build());
+        Response alsoExists = spy(Response.ok().build());
+        when(primary.validateUserExists(USERNAME)).thenReturn(exists);
+        when(secondary.validateUserExists(USERNAME)).thenReturn(alsoExists);
+
+        assertSame(exists, service.validateUserExists(USERNAME));
+        verify(exists, never()).close();
+        verify(alsoExists, timeout(5000)).close();
+    }
+
+    @Test
+    public void testValidateLoginOnlyAsksOwningBackend() throws Exception {
+        UserCredentialsDto credentials = new UserCredentialsDto("secret");
+        when(primary.validateUserExists(USERNAME)).thenReturn(Response.status(Status.NOT_FOUND).build());
+        when(secondary.validateUserExists(USERNAME)).thenReturn(Response.ok().build());
+        when(secondary.validateLogin(USERNAME, credentials)).thenReturn(Response.ok().build());
+
+        assertEquals(Status.OK.getStatusCode(), service.validateUserExists(USERNAME).getStatus());
+        assertEquals(Status.OK.getStatusCode(), service.validateLogin(USERNAME, credentials).getStatus());
+        verify(primary, never()).validateLogin(anyString(), any(UserCredentialsDto.class));
+        verify(secondary, times(1)).validateUserExists(USERNAME);
+    }
+
+    @Test
+    public void testValidateLoginOfUnknownUser() throws Exception {
+        when(primary.validateUserExists(USERNAME)).thenReturn(Response.status(Status.NOT_FOUND).build());
+        when(secondary.validateUserExists(USERNAME)).thenReturn(Response.status(Status.NOT_FOUND).build());
+
+        assertEquals(Status.NOT_FOUND.getStatusCode(), service.validateLogin(USERNAME, new UserCredentialsDto("secret")).getStatus());
+        verify(primary, never()).validateLogin(anyString(), any(UserCredentialsDto.class));
+        verify(secondary, never()).validateLogin(anyString(), any(UserCredentialsDto.class));
+    }
+
+    @Test
+    public void testGetUserDetailsBatchMergesByPrecedence() throws Exception {
+        List<String> usernames = Arrays.asList("a@smartling.com", "b@smartling.com");
+        FederatedUserModel a = user("A");
+        when(primary.getUserDetailsBatch(usernames)).thenReturn(Arrays.asList(a));
+        when(secondary.getUserDetailsBatch(usernames)).thenReturn(Arrays.asList(user("A"), user("B")));
+
+        List<FederatedUserModel> users = service.getUserDetailsBatch(usernames);
+        assertEquals(2, users.size());
+        assertSame(a, users.get(0));
+        assertEquals("B", users.get(1).getFirstName());
+    }
+
+    @Test
+    public void testSearchUsersSpansBackends() throws Exception {
+        when(primary.countUsers("smartling")).thenReturn(count(3));
+        when(secondary.countUsers("smartling")).thenReturn(count(5));
+        when(primary.searchUsers("smartling", 2, 1)).thenReturn(Arrays.asList(user("c")));
+        when(secondary.searchUsers("smartling", 0, 2)).thenReturn(Arrays.asList(user("d"), user("e")));
+
+        List<FederatedUserModel> page = service.searchUsers("smartling", 2, 3);
+        assertEquals(3, page.size());
+        assertEquals("c", page.get(0).getFirstName());
+        assertEquals("e", page.get(2).getFirstName());
+        assertEquals("8", service.countUsers("smartling").getHeaderString(FederatedUserService.TOTAL_COUNT_HEADER));
+    }
+
+    @Test
+    public void testSearchPagesReuseBackendCounts() throws Exception {
+        Map<String, FederatedUserService> backends = new LinkedHashMap<>();
+        backends.put("primary", primary);
+        backends.put("secondary", secondary);
+        service = new CompositeFederatedUserService(backends, executor, Tracer.DISABLED, new SearchCountCache(60));
+        when(primary.countUsers("smartling")).thenReturn(count(3));
+        when(secondary.countUsers("smartling")).thenReturn(count(5));
+        when(primary.searchUsers("smartling", 0, 3)).thenReturn(Arrays.asList(user("a"), user("b"), user("c")));
+        when(secondary.searchUsers("smartling", 0, 3)).thenReturn(Arrays.asList(user("d"), user("e"), user("f")));
+
+        assertEquals(3, service.searchUsers("smartling", 0, 3).size());
+        assertEquals(3, service.searchUsers("smartling", 3, 3).size());
+        verify(primary, times(1)).countUsers("smartling");
+        verify(secondary, times(1)).countUsers("smartling");
+    }
+
+    @Test
+    public void testCallsCarryCallersTraceContext() throws Exception {
+        Tracer tracer = new Tracer(mock(SpanExporter.class));
+        final TraceContextFilter filter = new TraceContextFilter(tracer);
+        final List<Object> traceParents = Collections.synchronizedList(new ArrayList<>());
+        Answer<FederatedUserModel> sendsRequest = new Answer<FederatedUserModel>() {
+            @Override
+            public FederatedUserModel answer(InvocationOnMock invocation) throws Throwable {
+                ClientRequestContext request = mock(ClientRequestContext.class);
+                MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+                when(request.getHeaders()).thenReturn(headers);
+                filter.filter(request);
+                traceParents.add(headers.getFirst(Tracer.TRACEPARENT));
+                return user("Traced");
+            }
+        };
+        when(primary.getUserDetails(USERNAME)).thenAnswer(sendsRequest);
+        when(secondary.getUserDetails(USERNAME)).thenAnswer(sendsRequest);
+        Map<String, FederatedUserService> backends = new LinkedHashMap<>();
+        backends.put("primary", primary);
+        backends.put("secondary", secondary);
+        service = new CompositeFederatedUserService(backends, executor, tracer);
+
+        Span span = tracer.start("getUserByUsername");
+        try {
+            service.getUserDetails(USERNAME);
+        } finally {
+            span.end();
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.<Object>asList(span.getTraceParent(), span.getTraceParent()), traceParents);
+    }
+
+    private static Response count(int count) {
+        return Response.ok().header(FederatedUserService.TOTAL_COUNT_HEADER, String.valueOf(count)).build();
+    }
+
+    private static FederatedUserModel user(String firstName) {
+        FederatedUserModel user = new FederatedUserModel();
+        user.setEmail(firstName.toLowerCase() + "@smartling.com");
+        user.setFirstName(firstName);
+        return user;
+    }
+}
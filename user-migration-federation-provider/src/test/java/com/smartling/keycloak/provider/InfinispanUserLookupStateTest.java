@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import org.infinispan.Cache;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Infinispan backed lookup state tests.
+ */
+public class InfinispanUserLookupStateTest {
+
+    private static final String COMPONENT_ID = "component";
+    private static final String USERNAME = "wa+user@smartling.com";
+
+    private InfinispanUserLookupState lookupState;
+
+    @Mock
+    private KeycloakSession keycloakSession;
+
+    @Mock
+    private KeycloakTransactionManager transactionManager;
+
+    @Mock
+    private Cache<String, Serializable> cache;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(keycloakSession.getTransactionManager()).thenReturn(transactionManager);
+        lookupState = new InfinispanUserLookupState(keycloakSession, cache, COMPONENT_ID, new RemoteUserFederationProviderConfig(new ComponentModel()));
+    }
+
+    @Test
+    public void testMarkNotFound() throws Exception {
+        lookupState.markNotFound(USERNAME);
+        verify(cache).put(contains(USERNAME), eq(Boolean.TRUE), eq((long) RemoteUserFederationProviderConfig.DEFAULT_NOT_FOUND_TTL), eq(TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        FederatedUserModel user = new FederatedUserModel();
+        user.setEmail(USERNAME);
+
+        lookupState.putSnapshot(USERNAME, user);
+        ArgumentCaptor<Serializable> value = ArgumentCaptor.forClass(Serializable.class);
+        verify(cache).put(contains(USERNAME), value.capture(), anyLong(), eq(TimeUnit.SECONDS));
+        assertTrue(value.getValue() instanceof byte[]);
+
+        when(cache.get(contains(USERNAME))).thenReturn(value.getValue());
+        assertEquals(USERNAME, lookupState.getSnapshot(USERNAME).getEmail());
+    }
+
+    @Test
+    public void testMissingSnapshot() throws Exception {
+        assertNull(lookupState.getSnapshot(USERNAME));
+    }
+
+    @Test
+    public void testBeginMigrationReleasedOnCompletion() throws Exception {
+        assertTrue(lookupState.tryBeginMigration(USERNAME));
+
+        ArgumentCaptor<KeycloakTransaction> release = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        verify(transactionManager).enlistAfterCompletion(release.capture());
+        release.getValue().begin();
+        release.getValue().commit();
+        verify(cache).remove(contains(USERNAME));
+    }
+
+    @Test
+    public void testBeginMigrationAlreadyInProgress() throws Exception {
+        when(cache.putIfAbsent(anyString(), any(Serializable.class), anyLong(), any(TimeUnit.class))).thenReturn("other-node");
+        assertFalse(lookupState.tryBeginMigration(USERNAME));
+        verifyZeroInteractions(transactionManager);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserService;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Lease tracking federated user service test cases.
+ */
+public class LeaseTrackingFederatedUserServiceTest {
+
+    private static final String USERNAME = "wa+user@smartling.com";
+
+    private final FederatedUserService delegate = mock(FederatedUserService.class);
+    private final ConnectionLeases leases = new ConnectionLeases("component");
+
+    private LeaseTrackingFederatedUserService service;
+
+    @Before
+    public void setUp() throws Exception {
+        service = new LeaseTrackingFederatedUserService(delegate, leases);
+    }
+
+    @Test
+    public void testReleasedResponsesAreClosed() throws Exception {
+        Response response = spy(Response.ok().build());
+        when(delegate.validateUserExists(USERNAME)).thenReturn(response);
+
+        service.release(service.validateUserExists(USERNAME));
+        service.releaseAll();
+
+        verify(response, times(1)).close();
+        assertEquals(1, leases.getOpenedResponses());
+        assertEquals(1, leases.getClosedResponses());
+        assertEquals(0, leases.getLeakedResponses());
+    }
+
+    @Test
+    public void testUnreleasedResponsesAreReclaimed() throws Exception {
+        Response response = spy(Response.ok().build());
+        when(delegate.countUsers(null)).thenReturn(response);
+
+        service.countUsers(null);
+        service.releaseAll();
+        service.releaseAll();
+
+        verify(response, times(1)).close();
+        assertEquals(1, leases.getClosedResponses());
+        assertEquals(1, leases.getLeakedResponses());
+    }
+
+    @Test
+    public void testReleasingTwiceCountsOnce() throws Exception {
+        when(delegate.validateUserExists(USERNAME)).thenReturn(Response.ok().build());
+
+        Response response = service.validateUserExists(USERNAME);
+        service.release(response);
+        service.release(response);
+        service.release(null);
+
+        assertEquals(1, leases.getClosedResponses());
+    }
+
+    @Test
+    public void testPoolStatsWithoutClient() throws Exception {
+        assertEquals(0, leases.getLeasedConnections());
+        assertEquals("unknown", leases.toString());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserService;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.core.Response;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Legacy host budget test cases.
+ */
+public class LegacyHostBudgetTest {
+
+    private static final String COMPONENT_A = "a";
+    private static final String COMPONENT_B = "b";
+
+    private final LegacyHostBudget host = new LegacyHostBudget("http://legacy:80", 4, 4, 0);
+
+    @After
+    public void tearDown() throws Exception {
+        host.close();
+    }
+
+    @Test
+    public void testComponentAloneUsesWholeHost() throws Exception {
+        host.register(COMPONENT_A, 20);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(host.acquire(COMPONENT_A));
+        }
+        assertFalse(host.acquire(COMPONENT_A));
+        assertEquals(4, host.getInFlight());
+    }
+
+    @Test
+    public void testComponentLimit() throws Exception {
+        host.register(COMPONENT_A, 2);
+
+        assertTrue(host.acquire(COMPONENT_A));
+        assertTrue(host.acquire(COMPONENT_A));
+        assertFalse(host.acquire(COMPONENT_A));
+    }
+
+    @Test
+    public void testBusyComponentsShareEvenly() throws Exception {
+        host.register(COMPONENT_A, 20);
+        host.register(COMPONENT_B, 20);
+        assertEquals(4, host.getShare(COMPONENT_A));
+
+        assertTrue(host.acquire(COMPONENT_A));
+        assertEquals(2, host.getShare(COMPONENT_B));
+
+        assertTrue(host.acquire(COMPONENT_B));
+        assertTrue(host.acquire(COMPONENT_B));
+        assertFalse(host.acquire(COMPONENT_B));
+
+        assertTrue(host.acquire(COMPONENT_A));
+        assertFalse(host.acquire(COMPONENT_A));
+    }
+
+    @Test
+    public void testBusyComponentDrainsToItsShare() throws Exception {
+        host.register(COMPONENT_A, 20);
+        host.register(COMPONENT_B, 20);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(host.acquire(COMPONENT_A));
+        }
+
+        assertTrue(host.acquire(COMPONENT_B));
+
+        // a is over its share now that b is busy, so the slot it frees goes to b
+        host.release(COMPONENT_A);
+        assertFalse(host.acquire(COMPONENT_A));
+        assertTrue(host.acquire(COMPONENT_B));
+    }
+
+    @Test
+    public void testWaitingCallGetsFreedSlot() throws Exception {
+        final LegacyHostBudget host = new LegacyHostBudget("http://legacy:80", 1, 1, TimeUnit.SECONDS.toMillis(10));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertTrue(host.acquire(COMPONENT_A));
+            Future<Boolean> waiting = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return host.acquire(COMPONENT_B);
+                }
+            });
+
+            host.release(COMPONENT_A);
+            assertTrue(waiting.get(10, TimeUnit.SECONDS));
+            assertEquals(1, host.getInFlight());
+        } finally {
+            executor.shutdownNow();
+            host.close();
+        }
+    }
+
+    @Test
+    public void testUnregisteredComponentForgottenOnceIdle() throws Exception {
+        host.register(COMPONENT_A, 20);
+        assertTrue(host.acquire(COMPONENT_A));
+
+        host.unregister(COMPONENT_A);
+        assertEquals(4, host.getShare(COMPONENT_A));
+
+        host.release(COMPONENT_A);
+        assertEquals(0, host.getShare(COMPONENT_A));
+        assertEquals(0, host.getInFlight());
+    }
+
+    @Test
+    public void testBudgetedServiceReleasesWhenResponseClosed() throws Exception {
+        FederatedUserService delegate = mock(FederatedUserService.class);
+        Response delegateResponse = mock(Response.class);
+        when(delegateResponse.getStatus()).thenReturn(200);
+        when(delegate.validateUserExists("user")).thenReturn(delegateResponse);
+        host.register(COMPONENT_A, 20);
+
+        Response response = new BudgetedFederatedUserService(delegate, host, COMPONENT_A).validateUserExists("user");
+        assertEquals(200, response.getStatus());
+        assertEquals(1, host.getInFlight());
+
+        response.close();
+        response.close();
+        verify(delegateResponse, times(2)).close();
+        assertEquals(0, host.getInFlight());
+    }
+
+    @Test
+    public void testBudgetedServiceReleasesWhenCallFails() throws Exception {
+        FederatedUserService delegate = mock(FederatedUserService.class);
+        when(delegate.countUsers("user")).thenThrow(new IllegalStateException("down"));
+        host.register(COMPONENT_A, 20);
+
+        try {
+            new BudgetedFederatedUserService(delegate, host, COMPONENT_A).countUsers("user");
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(0, host.getInFlight());
+        }
+    }
+
+    @Test(expected = ServiceUnavailableException.class)
+    public void testBudgetedServiceRejectsWhenHostBusy() throws Exception {
+        FederatedUserService delegate = mock(FederatedUserService.class);
+        host.register(COMPONENT_A, 20);
+        for (int i = 0; i < 4; i++) {
+            host.acquire(COMPONENT_B);
+        }
+
+        try {
+            new BudgetedFederatedUserService(delegate, host, COMPONENT_A).validateUserExists("user");
+        } finally {
+            verifyZeroInteractions(delegate);
+        }
+    }
+
+    @Test
+    public void testHostKey() throws Exception {
+        assertEquals("https://legacy.example.com:443", ResourceBudget.hostKey("https://Legacy.example.com/api"));
+        assertEquals("http://legacy:8080", ResourceBudget.hostKey(" http://legacy:8080/"));
+        assertEquals("http://legacy:80", ResourceBudget.hostKey("http://legacy"));
+    }
+
+    @Test
+    public void testComponentsShareHostBudget() throws Exception {
+        ResourceBudget budget = new ResourceBudget(4, 4, 0, 1);
+        try {
+            assertSame(budget.getHost("http://legacy/a/"), budget.getHost("http://legacy:80/b/"));
+            assertNotSame(budget.getHost("http://legacy/"), budget.getHost("https://legacy/"));
+            assertSame(budget.getFanOutExecutor(), budget.getFanOutExecutor());
+        } finally {
+            budget.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.mockito.internal.util.collections.Sets;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Legacy profile update test cases.
+ */
+public class LegacyProfileUpdateTest {
+
+    private static final String VERSION = RemoteUserFederationProvider.LEGACY_VERSION_ATTRIBUTE;
+
+    private final RealmModel realm = mock(RealmModel.class);
+    private final RoleModel role = mock(RoleModel.class);
+    private final UserModel user = mock(UserModel.class);
+
+    private FederatedUserModel legacyUser;
+
+    @Before
+    public void setUp() throws Exception {
+        when(realm.getRole("ROLE_FOO")).thenReturn(role);
+        when(user.isEnabled()).thenReturn(true);
+        when(user.getFirstName()).thenReturn("Wa");
+        when(user.getLastName()).thenReturn("User");
+        when(user.getAttribute("locale")).thenReturn(Arrays.asList("en"));
+        when(user.getFirstAttribute(VERSION)).thenReturn("v1");
+        when(user.hasRole(role)).thenReturn(true);
+
+        legacyUser = new FederatedUserModel();
+        legacyUser.setEnabled(true);
+        legacyUser.setFirstName("Wa");
+        legacyUser.setLastName("User");
+        legacyUser.setAttributes(Collections.<String, List<String>>singletonMap("locale", Arrays.asList("en")));
+        legacyUser.setRoles(Sets.newSet("ROLE_FOO"));
+        legacyUser.setVersion("v1");
+    }
+
+    @Test
+    public void testUnchangedProfileWritesNothing() throws Exception {
+        LegacyProfileUpdate update = LegacyProfileUpdate.between(realm, user, legacyUser, VERSION);
+        assertTrue(update.isEmpty());
+
+        update.applyTo(user);
+        verify(user, never()).setFirstName(anyString());
+        verify(user, never()).setAttribute(anyString(), anyListOf(String.class));
+        verify(user, never()).grantRole(any(RoleModel.class));
+    }
+
+    @Test
+    public void testOnlyChangedValuesAreWritten() throws Exception {
+        legacyUser.setLastName("Renamed");
+        legacyUser.setVersion("v2");
+        Map<String, List<String>> attributes = Collections.singletonMap("locale", Arrays.asList("de"));
+        legacyUser.setAttributes(attributes);
+
+        LegacyProfileUpdate update = LegacyProfileUpdate.between(realm, user, legacyUser, VERSION);
+        assertEquals(3, update.getWrites());
+
+        update.applyTo(user);
+        verify(user).setLastName("Renamed");
+        verify(user).setAttribute("locale", Arrays.asList("de"));
+        verify(user).setAttribute(VERSION, Arrays.asList("v2"));
+        verify(user, never()).setFirstName(anyString());
+        verify(user, never()).setEnabled(anyBoolean());
+    }
+
+    @Test
+    public void testMissingRolesAreGranted() throws Exception {
+        when(user.hasRole(role)).thenReturn(false);
+
+        LegacyProfileUpdate.between(realm, user, legacyUser, VERSION).applyTo(user);
+        verify(user).grantRole(role);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Linked user count test cases.
+ */
+public class LinkedUserCountTest {
+
+    private final KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+    private final KeycloakSession session = mock(KeycloakSession.class);
+    private final MigrationProgress progress = new MigrationProgress("component");
+
+    private ComponentModel model;
+
+    @Before
+    public void setUp() throws Exception {
+        model = new ComponentModel();
+        model.setId("component");
+        model.setParentId("realm");
+
+        when(sessionFactory.create()).thenReturn(session);
+        when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCountsUsersLinkedToComponent() throws Exception {
+        TypedQuery<Long> query = mock(TypedQuery.class);
+        when(query.setParameter(anyString(), any())).thenReturn(query);
+        when(query.getSingleResult()).thenReturn(42L);
+        EntityManager entityManager = mock(EntityManager.class);
+        when(entityManager.createQuery(LinkedUserCount.COUNT_QUERY, Long.class)).thenReturn(query);
+        JpaConnectionProvider jpa = mock(JpaConnectionProvider.class);
+        when(jpa.getEntityManager()).thenReturn(entityManager);
+        when(session.getProvider(JpaConnectionProvider.class)).thenReturn(jpa);
+
+        assertTrue(progress.tryStartCount());
+        new LinkedUserCount(sessionFactory, model, progress).run();
+
+        verify(query).setParameter("realmId", "realm");
+        verify(query).setParameter("link", "component");
+        assertEquals(42, progress.getLinkedUsers());
+        assertTrue(progress.tryStartCount());
+    }
+
+    @Test
+    public void testUnknownWithoutJpaStore() throws Exception {
+        assertTrue(progress.tryStartCount());
+        new LinkedUserCount(sessionFactory, model, progress).run();
+
+        assertEquals(-1, progress.getLinkedUsers());
+        assertTrue(progress.tryStartCount());
+        verify(session).close();
+    }
+}
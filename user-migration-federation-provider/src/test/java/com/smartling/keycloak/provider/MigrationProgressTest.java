@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Migration progress test cases.
+ */
+public class MigrationProgressTest {
+
+    private final MigrationProgress progress = new MigrationProgress("component");
+
+    @Test
+    public void testUnknownUntilCounted() throws Exception {
+        progress.userImported();
+
+        assertFalse(progress.isCounted());
+        assertEquals(-1, progress.getLinkedUsers());
+    }
+
+    @Test
+    public void testChangesDuringCountAreKept() throws Exception {
+        assertTrue(progress.tryStartCount());
+        long mark = progress.countStarted();
+
+        // imported and migrated while the count was running
+        progress.userImported();
+        progress.userMigrated();
+        progress.userMigrated();
+
+        progress.counted(5, mark);
+        assertEquals(4, progress.getLinkedUsers());
+    }
+
+    @Test
+    public void testTracksImportsAndMigrationsAfterCount() throws Exception {
+        assertTrue(progress.tryStartCount());
+        progress.counted(2, progress.countStarted());
+
+        progress.userImported();
+        progress.userMigrated();
+        progress.userMigrated();
+        progress.userMigrated();
+
+        assertEquals(0, progress.getLinkedUsers());
+    }
+
+    @Test
+    public void testOneCountAtATime() throws Exception {
+        assertTrue(progress.tryStartCount());
+        assertFalse(progress.tryStartCount());
+
+        progress.countFailed();
+        assertTrue(progress.tryStartCount());
+        assertFalse(progress.isCounted());
+    }
+
+    @Test
+    public void testLastSuccessfulLookup() throws Exception {
+        assertEquals(0, progress.getLastSuccessfulLookup());
+
+        progress.lookupSucceeded();
+        assertTrue(progress.getLastSuccessfulLookup() > 0);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Pre-migration job test cases.
+ */
+public class PreMigrationJobTest {
+
+    private static final String REALM_ID = "realm";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+    private final KeycloakSession session = mock(KeycloakSession.class);
+    private final RealmModel realm = mock(RealmModel.class);
+    private final RemoteUserFederationProviderFactory providerFactory = mock(RemoteUserFederationProviderFactory.class);
+    private final RemoteUserFederationProvider provider = mock(RemoteUserFederationProvider.class);
+
+    private UserStorageProviderModel model;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = folder.newFile("active-users.txt");
+        Files.write(file.toPath(), Arrays.asList("# seen in the last 30 days", "a@smartling.com", "", " B@smartling.com ",
+                "c@smartling.com", "a@smartling.com"), StandardCharsets.UTF_8);
+
+        model = new UserStorageProviderModel();
+        model.setConfig(new MultivaluedHashMap<String, String>());
+        model.getConfig().putSingle(RemoteUserFederationProviderConfig.PRE_MIGRATION_FILE, file.getPath());
+        model.getConfig().putSingle(RemoteUserFederationProviderConfig.PRE_MIGRATION_BATCH_SIZE, "2");
+
+        when(sessionFactory.create()).thenReturn(session);
+        when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        RealmProvider realms = mock(RealmProvider.class);
+        when(session.realms()).thenReturn(realms);
+        when(realms.getRealm(REALM_ID)).thenReturn(realm);
+        when(providerFactory.create(session, model)).thenReturn(provider);
+    }
+
+    @Test
+    public void testReadUsernames() throws Exception {
+        assertEquals(Arrays.asList("a@smartling.com", "b@smartling.com", "c@smartling.com"), PreMigrationJob.readUsernames(file.getPath()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testImportsInBatches() throws Exception {
+        when(provider.importUsers(eq(realm), any(Collection.class))).thenReturn(added(2), added(1));
+
+        SynchronizationResult result = new PreMigrationJob(sessionFactory, providerFactory, REALM_ID, model).run();
+        assertEquals(3, result.getAdded());
+        verify(provider).importUsers(realm, Arrays.asList("a@smartling.com", "b@smartling.com"));
+        verify(provider).importUsers(realm, Arrays.asList("c@smartling.com"));
+        verify(provider, times(2)).close();
+        verify(session, times(2)).close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFailedBatchIsCounted() throws Exception {
+        when(provider.importUsers(eq(realm), any(Collection.class))).thenThrow(new IllegalStateException("down"));
+
+        SynchronizationResult result = new PreMigrationJob(sessionFactory, providerFactory, REALM_ID, model).run();
+        assertEquals(0, result.getAdded());
+        assertEquals(3, result.getFailed());
+        verify(provider, times(2)).close();
+    }
+
+    @Test
+    public void testWithoutFileIsIgnored() throws Exception {
+        model.getConfig().remove(RemoteUserFederationProviderConfig.PRE_MIGRATION_FILE);
+
+        assertTrue(new PreMigrationJob(sessionFactory, providerFactory, REALM_ID, model).run().isIgnored());
+        verifyZeroInteractions(sessionFactory);
+    }
+
+    private static SynchronizationResult added(int count) {
+        SynchronizationResult result = new SynchronizationResult();
+        result.setAdded(count);
+        return result;
+    }
+}
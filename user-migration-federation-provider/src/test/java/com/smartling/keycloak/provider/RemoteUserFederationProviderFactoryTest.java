@@ -16,15 +16,27 @@
 package com.smartling.keycloak.provider;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.keycloak.Config.Scope;
+import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
 import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderModel;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.Collections;
+
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
@@ -33,6 +45,9 @@ import static org.mockito.Mockito.*;
  */
 public class RemoteUserFederationProviderFactoryTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private RemoteUserFederationProviderFactory factory;
 
     @Mock
@@ -74,14 +89,81 @@ public class RemoteUserFederationProviderFactoryTest {
 
     @Test
     public void testInit() throws Exception {
+        when(config.getInt(ResourceBudget.HOST_CONNECTIONS, ResourceBudget.DEFAULT_HOST_CONNECTIONS)).thenReturn(0);
+
         factory.init(config);
-        verifyZeroInteractions(config);
+        verify(config).getInt(ResourceBudget.HOST_CONNECTIONS, ResourceBudget.DEFAULT_HOST_CONNECTIONS);
+        verifyNoMoreInteractions(config);
     }
 
     @Test
     public void testPostInit() throws Exception {
         factory.postInit(keycloakSessionFactory);
-        verifyZeroInteractions(keycloakSession, keycloakSessionFactory);
+        verify(keycloakSessionFactory).register(any(ProviderEventListener.class));
+        verifyNoMoreInteractions(keycloakSessionFactory);
+        verifyZeroInteractions(keycloakSession);
+    }
+
+    @Test
+    public void testWarmUpAfterMigration() throws Exception {
+        RealmProvider realmProvider = mock(RealmProvider.class);
+        when(keycloakSessionFactory.create()).thenReturn(keycloakSession);
+        when(keycloakSession.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        when(keycloakSession.realms()).thenReturn(realmProvider);
+        when(realmProvider.getRealms()).thenReturn(Collections.<RealmModel>emptyList());
+
+        factory.postInit(keycloakSessionFactory);
+        ArgumentCaptor<ProviderEventListener> listener = ArgumentCaptor.forClass(ProviderEventListener.class);
+        verify(keycloakSessionFactory).register(listener.capture());
+
+        listener.getValue().onEvent(mock(ProviderEvent.class));
+        verify(keycloakSessionFactory, never()).create();
+
+        listener.getValue().onEvent(new PostMigrationEvent());
+        verify(realmProvider).getRealms();
+        verify(keycloakSession).close();
+    }
+
+    @Test
+    public void testPreRemoveClosesResources() throws Exception {
+        configureComponent();
+        ComponentResources resources = factory.getResources(userStorageProviderModel);
+
+        factory.preRemove(keycloakSession, mock(RealmModel.class), userStorageProviderModel);
+        assertTrue(resources.isClosed());
+        assertNotSame(resources, factory.getResources(userStorageProviderModel));
+    }
+
+    @Test
+    public void testReplacedResourcesClosedOnceReleased() throws Exception {
+        MultivaluedHashMap<String, String> model = configureComponent();
+        UserStorageProvider provider = factory.create(keycloakSession, userStorageProviderModel);
+        ComponentResources resources = factory.getResources(userStorageProviderModel);
+
+        model.putSingle(RemoteUserFederationProviderConfig.SEARCH_PAGE_SIZE, "10");
+        factory.onUpdate(keycloakSession, mock(RealmModel.class), userStorageProviderModel, userStorageProviderModel);
+        assertNotSame(resources, factory.getResources(userStorageProviderModel));
+        assertFalse(resources.isClosed());
+
+        provider.close();
+        assertTrue(resources.isClosed());
+    }
+
+    @Test
+    public void testAuditLogClosedWhenComponentChangesFile() throws Exception {
+        MultivaluedHashMap<String, String> model = configureComponent();
+        model.putSingle(RemoteUserFederationProviderConfig.AUDIT_LOG_FILE, folder.newFile("before.log").getPath());
+        AsyncFileAppender before = factory.getResources(userStorageProviderModel).getAuditLog().getAppender();
+
+        model.putSingle(RemoteUserFederationProviderConfig.AUDIT_LOG_FILE, folder.newFile("after.log").getPath());
+        factory.onUpdate(keycloakSession, mock(RealmModel.class), userStorageProviderModel, userStorageProviderModel);
+        AsyncFileAppender after = factory.getResources(userStorageProviderModel).getAuditLog().getAppender();
+
+        assertTrue(before.isClosed());
+        assertFalse(after.isClosed());
+
+        factory.preRemove(keycloakSession, mock(RealmModel.class), userStorageProviderModel);
+        assertTrue(after.isClosed());
     }
 
     @Test
@@ -89,4 +171,12 @@ public class RemoteUserFederationProviderFactoryTest {
         factory.close();
         verifyZeroInteractions(keycloakSession, keycloakSessionFactory);
     }
-}
\ No newline at end of file
+
+    private MultivaluedHashMap<String, String> configureComponent() {
+        MultivaluedHashMap<String, String> model = new MultivaluedHashMap<>();
+        model.putSingle(RemoteUserFederationProviderConfig.BASE_URI, "http://localhost:8080/api");
+        when(userStorageProviderModel.getId()).thenReturn("component");
+        when(userStorageProviderModel.getConfig()).thenReturn(model);
+        return model;
+    }
+}
@@ -0,0 +1,595 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserService;
+import org.infinispan.Cache;
+import org.jboss.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.credential.CredentialInput;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialManager;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Drives many provider sessions in parallel against a stub legacy API with
+ * latency and faults, and checks that every user is imported exactly once,
+ * every password gets migrated, no user is looked up more often than its
+ * sessions need and login throughput stays within the baselines recorded in
+ * {@code stress-baselines.properties}.
+ *
+ * Each session gets its own provider, as in Keycloak, sharing the component's
+ * resources and a cluster lookup state backed by an in-memory cache. Local
+ * storage is read committed: a user added in one session is only seen by
+ * other sessions once that session commits.
+ */
+@Category(StressTests.class)
+public class RemoteUserFederationProviderStressTest {
+
+    private static final Logger LOG = Logger.getLogger(RemoteUserFederationProviderStressTest.class);
+
+    private static final String BASELINES = "/stress-baselines.properties";
+
+    private static final int THREADS = 32;
+    private static final int USERS = 400;
+    private static final int SESSIONS_PER_USER = 3;
+    private static final int BATCH_SIZE = 20;
+    private static final long LATENCY_MILLIS = 5;
+    private static final double FAULT_RATE = 0.05;
+    private static final int MIGRATION_LOCK_TTL = 10;
+    private static final int COMPONENTS = 8;
+    private static final int HOST_CALLS = 8;
+
+    private final ThreadLocal<Transaction> current = new ThreadLocal<>();
+    private final ConcurrentMap<String, Queue<LocalUser>> localUsers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Object, Serializable> workCache = new ConcurrentHashMap<>();
+    private final AtomicInteger failedLogins = new AtomicInteger();
+
+    private StubFederatedUserService legacyApi;
+    private RetryingFederatedUserService federatedUserService;
+    private ComponentModel model;
+    private ComponentResources resources;
+    private KeycloakSession session;
+    private RealmModel realm;
+    private Cache<String, Serializable> cache;
+    private ExecutorService executor;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        legacyApi = new StubFederatedUserService(LATENCY_MILLIS, FAULT_RATE);
+        for (int i = 0; i < USERS; i++) {
+            legacyApi.addUser(username(i), password(i));
+        }
+        federatedUserService = new RetryingFederatedUserService(legacyApi,
+                new RetryBudget(RemoteUserFederationProviderConfig.DEFAULT_RETRY_BUDGET), RemoteUserFederationProviderConfig.DEFAULT_MAX_RETRIES, 1, 5);
+
+        model = new ComponentModel();
+        model.setId("stress");
+        model.setParentId("realm");
+        model.setConfig(new MultivaluedHashMap<String, String>());
+        model.getConfig().putSingle(RemoteUserFederationProviderConfig.REFRESH_INTERVAL, "1");
+        model.getConfig().putSingle(RemoteUserFederationProviderConfig.MIGRATION_LOCK_TTL, String.valueOf(MIGRATION_LOCK_TTL));
+        resources = ComponentResources.standalone(model);
+
+        session = mock(KeycloakSession.class, withSettings().stubOnly());
+        realm = mock(RealmModel.class, withSettings().stubOnly());
+
+        UserProvider userProvider = mock(UserProvider.class, withSettings().stubOnly());
+        when(session.userLocalStorage()).thenReturn(userProvider);
+        when(userProvider.getUserByUsername(anyString(), any(RealmModel.class))).thenAnswer(new Answer<UserModel>() {
+            @Override
+            public UserModel answer(InvocationOnMock invocation) {
+                return current.get().getUser((String) invocation.getArguments()[0]);
+            }
+        });
+        when(userProvider.addUser(any(RealmModel.class), anyString())).thenAnswer(new Answer<UserModel>() {
+            @Override
+            public UserModel answer(InvocationOnMock invocation) {
+                return current.get().addUser((String) invocation.getArguments()[1]);
+            }
+        });
+
+        KeycloakTransactionManager transactionManager = mock(KeycloakTransactionManager.class, withSettings().stubOnly());
+        when(session.getTransactionManager()).thenReturn(transactionManager);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                current.get().afterCompletion.add((KeycloakTransaction) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(transactionManager).enlistAfterCompletion(any(KeycloakTransaction.class));
+
+        UserCredentialManager credentialManager = mock(UserCredentialManager.class, withSettings().stubOnly());
+        when(session.userCredentialManager()).thenReturn(credentialManager);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                LocalUser user = (LocalUser) invocation.getArguments()[1];
+                user.password = ((UserCredentialModel) invocation.getArguments()[2]).getValue();
+                return null;
+            }
+        }).when(credentialManager).updateCredential(any(RealmModel.class), any(UserModel.class), any(CredentialInput.class));
+
+        cache = mock(Cache.class, withSettings().stubOnly());
+        when(cache.containsKey(any())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                return workCache.containsKey(invocation.getArguments()[0]);
+            }
+        });
+        when(cache.get(any())).thenAnswer(new Answer<Serializable>() {
+            @Override
+            public Serializable answer(InvocationOnMock invocation) {
+                return workCache.get(invocation.getArguments()[0]);
+            }
+        });
+        when(cache.remove(any())).thenAnswer(new Answer<Serializable>() {
+            @Override
+            public Serializable answer(InvocationOnMock invocation) {
+                return workCache.remove(invocation.getArguments()[0]);
+            }
+        });
+        when(cache.put(anyString(), any(Serializable.class), anyLong(), any(TimeUnit.class))).thenAnswer(new Answer<Serializable>() {
+            @Override
+            public Serializable answer(InvocationOnMock invocation) {
+                return workCache.put(invocation.getArguments()[0], (Serializable) invocation.getArguments()[1]);
+            }
+        });
+        when(cache.putIfAbsent(anyString(), any(Serializable.class), anyLong(), any(TimeUnit.class))).thenAnswer(new Answer<Serializable>() {
+            @Override
+            public Serializable answer(InvocationOnMock invocation) {
+                return workCache.putIfAbsent(invocation.getArguments()[0], (Serializable) invocation.getArguments()[1]);
+            }
+        });
+
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        resources.close();
+    }
+
+    @Test
+    public void testConcurrentFirstLogins() throws Exception {
+        List<Callable<Void>> logins = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            // the same user logging in from several sessions at once
+            for (int j = 0; j < SESSIONS_PER_USER; j++) {
+                logins.add(logIn(i));
+            }
+        }
+
+        long elapsed = run("concurrentFirstLogins", logins);
+
+        assertAllUsersMigrated();
+        // the sessions of a user may all miss its snapshot, but none looks the user up twice
+        assertLookupsPerUser(SESSIONS_PER_USER);
+        assertMeetsBaseline("concurrentFirstLogins", logins.size(), elapsed);
+    }
+
+    @Test
+    public void testPreMigrationRacingLogins() throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int first = 0; first < USERS; first += BATCH_SIZE) {
+            List<String> batch = new ArrayList<>();
+            for (int i = first; i < first + BATCH_SIZE; i++) {
+                batch.add(username(i));
+            }
+
+            // two nodes pre-migrating the same batch while its users log in
+            tasks.add(importUsers(batch));
+            tasks.add(importUsers(batch));
+            for (int i = first; i < first + BATCH_SIZE; i++) {
+                tasks.add(logIn(i));
+            }
+        }
+
+        long elapsed = run("preMigrationRacingLogins", tasks);
+
+        assertAllUsersMigrated();
+        // batches fetch their users in bulk, so only a login beating its batch looks a user up
+        assertLookupsPerUser(1);
+        assertMeetsBaseline("preMigrationRacingLogins", USERS, elapsed);
+    }
+
+    @Test
+    public void testComponentsShareHostBudget() throws Exception {
+        LegacyHostBudget host = new LegacyHostBudget("http://legacy:80", HOST_CALLS, HOST_CALLS, TimeUnit.SECONDS.toMillis(30));
+        try {
+            List<Callable<Void>> lookups = new ArrayList<>();
+            for (int c = 0; c < COMPONENTS; c++) {
+                String componentId = "component-" + c;
+                host.register(componentId, RemoteUserFederationProviderConfig.DEFAULT_CONNECTION_POOL_SIZE);
+                FederatedUserService service = new BudgetedFederatedUserService(legacyApi, host, componentId);
+                for (int i = c; i < USERS; i += COMPONENTS) {
+                    lookups.add(getUserDetails(service, username(i)));
+                }
+            }
+
+            run("componentsShareHostBudget", lookups);
+
+            // however many components there are, the legacy host never sees more than its budget
+            assertTrue(legacyApi.getMaxInFlight() <= HOST_CALLS);
+            assertEquals(0, host.getInFlight());
+        } finally {
+            host.close();
+        }
+    }
+
+    // Runs the tasks on all threads and returns the nanoseconds they took
+    private long run(String scenario, List<Callable<Void>> tasks) throws Exception {
+        long start = System.nanoTime();
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        LOG.infof("%s: %d tasks in %d ms, %d legacy calls (%d failed, at most %d at once)",
+                scenario, tasks.size(), TimeUnit.NANOSECONDS.toMillis(elapsed), legacyApi.getCalls(),
+                legacyApi.getFaults(), legacyApi.getMaxInFlight());
+        return elapsed;
+    }
+
+    private void assertAllUsersMigrated() {
+        assertEquals("logins that never succeeded", 0, failedLogins.get());
+
+        for (int i = 0; i < USERS; i++) {
+            Queue<LocalUser> users = localUsers.get(username(i));
+            assertNotNull("user not imported: " + username(i), users);
+            assertEquals("duplicate users: " + username(i), 1, users.size());
+
+            LocalUser user = users.peek();
+            assertNull("password not migrated: " + username(i), user.getFederationLink());
+            assertEquals(password(i), user.password);
+        }
+    }
+
+    /*
+     * Retried lookups after injected faults are not counted, so redundant lookups, say a
+     * snapshot that is missed or fetched twice, fail the test whatever the timing.
+     */
+    private void assertLookupsPerUser(int max) {
+        for (int i = 0; i < USERS; i++) {
+            int lookups = legacyApi.getLookups(username(i));
+            assertTrue(String.format("%s looked up %d times, at most %d expected", username(i), lookups, max), lookups <= max);
+        }
+    }
+
+    private static void assertMeetsBaseline(String scenario, int logins, long elapsed) throws IOException {
+        Properties baselines = new Properties();
+        try (InputStream in = RemoteUserFederationProviderStressTest.class.getResourceAsStream(BASELINES)) {
+            baselines.load(in);
+        }
+
+        double loginsPerSecond = logins * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        LOG.infof("%s: %.0f logins/s", scenario, loginsPerSecond);
+
+        double baseline = Double.parseDouble(baselines.getProperty(scenario));
+        double minimum = baseline * (1 - Double.parseDouble(baselines.getProperty("tolerance")));
+        assertTrue(String.format("%s at %.0f logins/s is below %.0f (baseline %.0f)", scenario, loginsPerSecond, minimum, baseline),
+                loginsPerSecond >= minimum);
+    }
+
+    /*
+     * Logs the user in, trying again after an injected fault, for as long as a claim on the
+     * user's migration may live: a login still failing by then would fail in production too.
+     */
+    private Callable<Void> logIn(final int user) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(MIGRATION_LOCK_TTL);
+                do {
+                    if (tryLogIn(username(user), password(user))) return null;
+                    Thread.sleep(1);
+                } while (System.nanoTime() - deadline < 0);
+
+                failedLogins.incrementAndGet();
+                return null;
+            }
+        };
+    }
+
+    // Finds the user and checks the password the way Keycloak's user storage manager does
+    private boolean tryLogIn(String username, String password) {
+        Transaction transaction = begin();
+        try {
+            RemoteUserFederationProvider provider = transaction.provider;
+            UserModel user = transaction.getUser(username);
+            if (user == null) {
+                user = provider.getUserByUsername(username, realm);
+            } else if (model.getId().equals(user.getFederationLink())) {
+                user = provider.validate(realm, user);
+            }
+
+            boolean valid;
+            if (user == null) {
+                valid = false;
+            } else if (model.getId().equals(user.getFederationLink())) {
+                valid = provider.isValid(realm, user, UserCredentialModel.password(password));
+            } else {
+                valid = password.equals(((LocalUser) user).password);
+            }
+
+            transaction.commit();
+            return valid;
+        } catch (RuntimeException ex) {
+            transaction.rollback();
+            return false;
+        }
+    }
+
+    private static Callable<Void> getUserDetails(final FederatedUserService service, final String username) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    service.getUserDetails(username);
+                } catch (RuntimeException ex) {
+                    // injected fault
+                }
+                return null;
+            }
+        };
+    }
+
+    private Callable<Void> importUsers(final List<String> usernames) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                Transaction transaction = begin();
+                try {
+                    transaction.provider.importUsers(realm, usernames);
+                    transaction.commit();
+                } catch (RuntimeException ex) {
+                    transaction.rollback();
+                }
+                return null;
+            }
+        };
+    }
+
+    private Transaction begin() {
+        Transaction transaction = new Transaction();
+        current.set(transaction);
+        return transaction;
+    }
+
+    private static String username(int i) {
+        return "user" + i + "@smartling.com";
+    }
+
+    private static String password(int i) {
+        return "secret-" + i;
+    }
+
+    /**
+     * One Keycloak session and its transaction, bound to the thread running it.
+     */
+    private class Transaction {
+        private final List<LocalUser> added = new ArrayList<>();
+        private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+        private final RemoteUserFederationProvider provider = new RemoteUserFederationProvider(session, model, federatedUserService,
+                new InfinispanUserLookupState(session, cache, model.getId(), new RemoteUserFederationProviderConfig(model)), resources);
+
+        UserModel getUser(String username) {
+            for (LocalUser user : added) {
+                if (user.getUsername().equals(username)) return user;
+            }
+            Queue<LocalUser> committed = localUsers.get(username);
+            return committed != null ? committed.peek() : null;
+        }
+
+        UserModel addUser(String username) {
+            LocalUser user = LocalUser.create(username);
+            added.add(user);
+            return user;
+        }
+
+        void commit() {
+            for (LocalUser user : added) {
+                Queue<LocalUser> users = new ConcurrentLinkedQueue<>();
+                Queue<LocalUser> existing = localUsers.putIfAbsent(user.getUsername(), users);
+                (existing != null ? existing : users).add(user);
+            }
+            end(true);
+        }
+
+        void rollback() {
+            end(false);
+        }
+
+        private void end(boolean committed) {
+            current.remove();
+            for (KeycloakTransaction transaction : afterCompletion) {
+                if (committed) {
+                    transaction.commit();
+                } else {
+                    transaction.rollback();
+                }
+            }
+            provider.close();
+        }
+    }
+
+    /**
+     * Local user holding the state the provider reads and writes; Mockito
+     * answers everything else.
+     */
+    abstract static class LocalUser implements UserModel {
+        private final String id = UUID.randomUUID().toString();
+        private final Map<String, List<String>> attributes = new ConcurrentHashMap<>();
+        private volatile String username;
+        private volatile String email;
+        private volatile String firstName;
+        private volatile String lastName;
+        private volatile boolean enabled;
+        private volatile boolean emailVerified;
+        private volatile String federationLink;
+        private volatile String password;
+
+        static LocalUser create(String username) {
+            LocalUser user = mock(LocalUser.class, withSettings().useConstructor().defaultAnswer(CALLS_REAL_METHODS).stubOnly());
+            user.setUsername(username);
+            return user;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public String getEmail() {
+            return email;
+        }
+
+        @Override
+        public void setEmail(String email) {
+            this.email = email;
+        }
+
+        @Override
+        public String getFirstName() {
+            return firstName;
+        }
+
+        @Override
+        public void setFirstName(String firstName) {
+            this.firstName = firstName;
+        }
+
+        @Override
+        public String getLastName() {
+            return lastName;
+        }
+
+        @Override
+        public void setLastName(String lastName) {
+            this.lastName = lastName;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        @Override
+        public boolean isEmailVerified() {
+            return emailVerified;
+        }
+
+        @Override
+        public void setEmailVerified(boolean emailVerified) {
+            this.emailVerified = emailVerified;
+        }
+
+        @Override
+        public String getFederationLink() {
+            return federationLink;
+        }
+
+        @Override
+        public void setFederationLink(String federationLink) {
+            this.federationLink = federationLink;
+        }
+
+        @Override
+        public void setSingleAttribute(String name, String value) {
+            attributes.put(name, Collections.singletonList(value));
+        }
+
+        @Override
+        public void setAttribute(String name, List<String> values) {
+            attributes.put(name, values);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        @Override
+        public String getFirstAttribute(String name) {
+            List<String> values = attributes.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        @Override
+        public List<String> getAttribute(String name) {
+            List<String> values = attributes.get(name);
+            return values != null ? values : Collections.<String>emptyList();
+        }
+
+        @Override
+        public Map<String, List<String>> getAttributes() {
+            return attributes;
+        }
+    }
+}
@@ -20,19 +20,25 @@ import com.smartling.keycloak.federation.FederatedUserService;
 import com.smartling.keycloak.federation.UserCredentialsDto;
 import org.junit.Before;
 import org.junit.Test;
+import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserCredentialManager;
 import org.keycloak.models.UserCredentialModel;
 import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.UserProvider;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.util.collections.Sets;
 
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
 import static org.junit.Assert.*;
@@ -186,20 +192,385 @@ public class RemoteUserFederationProviderTest {
         verify(federatedUserService).getUserDetails(eq(FEDERATED_USER_KNOWN_EMAIL));
     }
 
+    @Test
+    public void testGetUserByUsernameRecentlyNotFound() throws Exception {
+        UserLookupState lookupState = mock(UserLookupState.class);
+        when(lookupState.isNotFound(FEDERATED_USER_KNOWN_USERNAME)).thenReturn(true);
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, lookupState);
+
+        assertNull(provider.getUserByUsername(FEDERATED_USER_KNOWN_USERNAME, realmModel));
+        verify(federatedUserService, never()).getUserDetails(anyString());
+        verify(lookupState, never()).markNotFound(anyString());
+    }
+
+    @Test
+    public void testGetUserByUsernameNotFoundIsShared() throws Exception {
+        UserLookupState lookupState = mock(UserLookupState.class);
+        when(federatedUserService.getUserDetails(eq(KEYCLOAK_EXISTING_USER_USERNAME))).thenThrow(new NotFoundException());
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, lookupState);
+
+        assertNull(provider.getUserByUsername(KEYCLOAK_EXISTING_USER_USERNAME, realmModel));
+        verify(lookupState).markNotFound(KEYCLOAK_EXISTING_USER_USERNAME);
+    }
+
+    @Test
+    public void testGetUserByUsernameUsesSharedSnapshot() throws Exception {
+        UserLookupState lookupState = mock(UserLookupState.class);
+        when(lookupState.getSnapshot(FEDERATED_USER_KNOWN_USERNAME)).thenReturn(federatedUserModel);
+        when(lookupState.tryBeginMigration(FEDERATED_USER_KNOWN_USERNAME)).thenReturn(true);
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, lookupState);
+
+        assertNotNull(provider.getUserByUsername(FEDERATED_USER_KNOWN_USERNAME, realmModel));
+        verify(federatedUserService, never()).getUserDetails(anyString());
+    }
+
+    @Test
+    public void testGetUserByUsernameMigrationInProgress() throws Exception {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(RemoteUserFederationProviderConfig.MIGRATION_WAIT, "0");
+        when(userStorageProviderModel.getConfig()).thenReturn(config);
+        UserLookupState lookupState = mock(UserLookupState.class);
+        when(lookupState.tryBeginMigration(FEDERATED_USER_KNOWN_USERNAME)).thenReturn(false);
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, lookupState);
+
+        assertNull(provider.getUserByUsername(FEDERATED_USER_KNOWN_USERNAME, realmModel));
+        verify(lookupState).putSnapshot(FEDERATED_USER_KNOWN_USERNAME, federatedUserModel);
+        verify(userProvider, never()).addUser(any(RealmModel.class), anyString());
+    }
+
+    @Test
+    public void testGetUserByUsernameWaitsForConcurrentMigration() throws Exception {
+        UserLookupState lookupState = mock(UserLookupState.class);
+        when(lookupState.tryBeginMigration(FEDERATED_USER_KNOWN_USERNAME)).thenReturn(false, false, true);
+        when(userProvider.getUserByUsername(FEDERATED_USER_KNOWN_USERNAME, realmModel)).thenReturn(userModel);
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, lookupState);
+
+        assertSame(userModel, provider.getUserByUsername(FEDERATED_USER_KNOWN_USERNAME, realmModel));
+        verify(lookupState, times(3)).tryBeginMigration(FEDERATED_USER_KNOWN_USERNAME);
+        verify(userProvider, never()).addUser(any(RealmModel.class), anyString());
+    }
+
+    @Test
+    public void testGetUserByUsernameImportedBeforeClaim() throws Exception {
+        // another session committed the user after Keycloak missed it locally, then let go of its claim
+        UserLookupState lookupState = mock(UserLookupState.class);
+        when(lookupState.tryBeginMigration(FEDERATED_USER_KNOWN_USERNAME)).thenReturn(true);
+        when(userProvider.getUserByUsername(FEDERATED_USER_KNOWN_USERNAME, realmModel)).thenReturn(userModel);
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, lookupState);
+
+        assertSame(userModel, provider.getUserByUsername(FEDERATED_USER_KNOWN_USERNAME, realmModel));
+        verify(userProvider, never()).addUser(any(RealmModel.class), anyString());
+    }
+
+    @Test
+    public void testGetUserByUsernameNotFoundIsAudited() throws Exception {
+        MigrationAuditLog auditLog = mock(MigrationAuditLog.class);
+        when(federatedUserService.getUserDetails(eq(KEYCLOAK_EXISTING_USER_USERNAME))).thenThrow(new NotFoundException());
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService,
+                UserLookupState.NONE, new ComponentResources(userStorageProviderModel, Tracer.DISABLED, auditLog));
+
+        assertNull(provider.getUserByUsername(KEYCLOAK_EXISTING_USER_USERNAME, realmModel));
+        verify(auditLog).notFound(realmModel, KEYCLOAK_EXISTING_USER_USERNAME);
+    }
+
+    @Test
+    public void testGetUserByUsernameImportIsAudited() throws Exception {
+        MigrationAuditLog auditLog = mock(MigrationAuditLog.class);
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService,
+                UserLookupState.NONE, new ComponentResources(userStorageProviderModel, Tracer.DISABLED, auditLog));
+
+        assertNotNull(provider.getUserByUsername(FEDERATED_USER_KNOWN_USERNAME, realmModel));
+        verify(auditLog).userImported(realmModel, FEDERATED_USER_KNOWN_USERNAME, federatedUserModel);
+    }
+
+    @Test
+    public void testSearchForUserSkipsMigratedUsers() throws Exception {
+        FederatedUserModel migrated = new FederatedUserModel();
+        migrated.setEmail(KEYCLOAK_EXISTING_USER_EMAIL);
+        FederatedUserModel legacy = new FederatedUserModel();
+        legacy.setEmail(FEDERATED_USER_KNOWN_EMAIL);
+        legacy.setFirstName("Legacy");
+        when(federatedUserService.searchUsers("smartling", 0, 10)).thenReturn(Arrays.asList(migrated, legacy));
+
+        List<UserModel> users = provider.searchForUser("smartling", realmModel, 0, 10);
+        assertEquals(1, users.size());
+        assertEquals(FEDERATED_USER_KNOWN_USERNAME, users.get(0).getUsername());
+        assertEquals("Legacy", users.get(0).getFirstName());
+        verify(userProvider, never()).addUser(any(RealmModel.class), anyString());
+    }
+
+    @Test
+    public void testGetUsersPagesThroughLegacySearch() throws Exception {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(RemoteUserFederationProviderConfig.SEARCH_PAGE_SIZE, "2");
+        when(userStorageProviderModel.getConfig()).thenReturn(config);
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, UserLookupState.NONE);
+
+        when(federatedUserService.searchUsers(null, 0, 2)).thenReturn(Arrays.asList(legacyUser("a@smartling.com"), legacyUser("b@smartling.com")));
+        when(federatedUserService.searchUsers(null, 2, 2)).thenReturn(Arrays.asList(legacyUser("c@smartling.com")));
+
+        assertEquals(3, provider.getUsers(realmModel).size());
+        verify(federatedUserService, times(2)).searchUsers(anyString(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void testUnboundedListingReadsAtMostMaxResults() throws Exception {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(RemoteUserFederationProviderConfig.SEARCH_PAGE_SIZE, "2");
+        config.putSingle(RemoteUserFederationProviderConfig.SEARCH_MAX_RESULTS, "3");
+        when(userStorageProviderModel.getConfig()).thenReturn(config);
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, UserLookupState.NONE);
+
+        when(federatedUserService.searchUsers(null, 0, 2)).thenReturn(Arrays.asList(legacyUser("a@smartling.com"), legacyUser("b@smartling.com")));
+        when(federatedUserService.searchUsers(null, 2, 1)).thenReturn(Arrays.asList(legacyUser("c@smartling.com")));
+
+        assertEquals(3, provider.getUsers(realmModel).size());
+        verify(federatedUserService, times(2)).searchUsers(anyString(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void testSearchFillsPagesPastMigratedUsers() throws Exception {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(RemoteUserFederationProviderConfig.SEARCH_PAGE_SIZE, "2");
+        when(userStorageProviderModel.getConfig()).thenReturn(config);
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, UserLookupState.NONE);
+
+        when(federatedUserService.searchUsers("smartling", 0, 2)).thenReturn(Arrays.asList(legacyUser(KEYCLOAK_EXISTING_USER_EMAIL), legacyUser("a@smartling.com")));
+        when(federatedUserService.searchUsers("smartling", 2, 1)).thenReturn(Arrays.asList(legacyUser("b@smartling.com")));
+        when(federatedUserService.searchUsers("smartling", 3, 2)).thenReturn(Arrays.asList(legacyUser("c@smartling.com")));
+
+        List<UserModel> first = provider.searchForUser("smartling", realmModel, 0, 2);
+        assertEquals(2, first.size());
+        assertEquals("a@smartling.com", first.get(0).getUsername());
+        assertEquals("b@smartling.com", first.get(1).getUsername());
+
+        // the next page resumes where the first one stopped in the legacy results
+        List<UserModel> second = provider.searchForUser("smartling", realmModel, 2, 2);
+        assertEquals(1, second.size());
+        assertEquals("c@smartling.com", second.get(0).getUsername());
+        verify(federatedUserService, times(1)).searchUsers("smartling", 0, 2);
+    }
+
+    @Test
+    public void testSearchOffsetSkipsUnmigratedUsersOnly() throws Exception {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(RemoteUserFederationProviderConfig.SEARCH_PAGE_SIZE, "2");
+        when(userStorageProviderModel.getConfig()).thenReturn(config);
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, UserLookupState.NONE);
+
+        when(federatedUserService.searchUsers("smartling", 0, 2)).thenReturn(Arrays.asList(legacyUser(KEYCLOAK_EXISTING_USER_EMAIL), legacyUser("a@smartling.com")));
+        when(federatedUserService.searchUsers("smartling", 2, 1)).thenReturn(Arrays.asList(legacyUser("b@smartling.com")));
+
+        List<UserModel> users = provider.searchForUser("smartling", realmModel, 1, 1);
+        assertEquals(1, users.size());
+        assertEquals("b@smartling.com", users.get(0).getUsername());
+    }
+
+    @Test
+    public void testGetUsersCountSkipsMigratedUsers() throws Exception {
+        when(federatedUserService.searchUsers(null, 0, 100)).thenReturn(Arrays.asList(legacyUser(KEYCLOAK_EXISTING_USER_EMAIL), legacyUser("a@smartling.com")));
+
+        assertEquals(1, provider.getUsersCount(realmModel));
+        assertEquals(1, provider.getUsersCount(realmModel));
+        verify(federatedUserService, times(1)).searchUsers(null, 0, 100);
+        verify(federatedUserService, never()).countUsers(anyString());
+    }
+
+    @Test
+    public void testGetUserByUsernameStoresLegacyVersion() throws Exception {
+        when(federatedUserModel.getVersion()).thenReturn("v1");
+        when(keycloakSession.userLocalStorage().addUser(eq(realmModel), eq(FEDERATED_USER_KNOWN_USERNAME))).thenReturn(userModel);
+
+        assertNotNull(provider.getUserByUsername(FEDERATED_USER_KNOWN_USERNAME, realmModel));
+        verify(userModel).setAttribute(RemoteUserFederationProvider.LEGACY_VERSION_ATTRIBUTE, Arrays.asList("v1"));
+    }
+
+    @Test
+    public void testValidateUnchangedUser() throws Exception {
+        provider = refreshingProvider();
+        when(userModel.getFirstAttribute(RemoteUserFederationProvider.LEGACY_VERSION_ATTRIBUTE)).thenReturn("v1");
+        when(federatedUserService.getUserDetailsIfChanged(FEDERATED_USER_KNOWN_USERNAME, "\"v1\"")).thenReturn(Response.notModified().build());
+
+        assertSame(userModel, provider.validate(realmModel, userModel));
+        verify(userModel, never()).setFirstName(anyString());
+        verify(federatedUserService, never()).getUserDetails(anyString());
+    }
+
+    @Test
+    public void testValidateChangedUser() throws Exception {
+        provider = refreshingProvider();
+        FederatedUserModel changed = legacyUser(FEDERATED_USER_KNOWN_EMAIL);
+        changed.setFirstName("Changed");
+        changed.setVersion("v2");
+        Response response = mock(Response.class);
+        when(response.getStatus()).thenReturn(Status.OK.getStatusCode());
+        when(response.readEntity(FederatedUserModel.class)).thenReturn(changed);
+        when(federatedUserService.getUserDetailsIfChanged(FEDERATED_USER_KNOWN_USERNAME, null)).thenReturn(response);
+
+        assertSame(userModel, provider.validate(realmModel, userModel));
+        verify(userModel).setFirstName("Changed");
+        verify(userModel).setAttribute(RemoteUserFederationProvider.LEGACY_VERSION_ATTRIBUTE, Arrays.asList("v2"));
+        verify(response).close();
+    }
+
+    @Test
+    public void testValidateChecksAtMostOncePerInterval() throws Exception {
+        provider = refreshingProvider();
+        when(federatedUserService.getUserDetailsIfChanged(anyString(), anyString())).thenReturn(Response.notModified().build());
+
+        provider.validate(realmModel, userModel);
+        provider.validate(realmModel, userModel);
+        verify(federatedUserService, times(1)).getUserDetailsIfChanged(anyString(), anyString());
+    }
+
+    @Test
+    public void testValidateKeepsUserWhenLegacyApiFails() throws Exception {
+        provider = refreshingProvider();
+        when(federatedUserService.getUserDetailsIfChanged(anyString(), anyString())).thenThrow(new IllegalStateException("down"));
+
+        assertSame(userModel, provider.validate(realmModel, userModel));
+    }
+
+    @Test
+    public void testValidateWithoutRefreshInterval() throws Exception {
+        when(userStorageProviderModel.getId()).thenReturn("component");
+        when(userModel.getFederationLink()).thenReturn("component");
+
+        assertSame(userModel, provider.validate(realmModel, userModel));
+        verifyZeroInteractions(federatedUserService);
+    }
+
+    @Test
+    public void testImportUsersFetchesOneBatch() throws Exception {
+        MigrationAuditLog auditLog = mock(MigrationAuditLog.class);
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService,
+                UserLookupState.NONE, new ComponentResources(userStorageProviderModel, Tracer.DISABLED, auditLog));
+        when(federatedUserService.getUserDetailsBatch(Arrays.asList(FEDERATED_USER_KNOWN_USERNAME, "gone@smartling.com")))
+                .thenReturn(Arrays.asList(federatedUserModel));
+
+        SynchronizationResult result = provider.importUsers(realmModel,
+                Arrays.asList(KEYCLOAK_EXISTING_USER_USERNAME, FEDERATED_USER_KNOWN_USERNAME.toUpperCase(), "gone@smartling.com"));
+        assertEquals(1, result.getAdded());
+        verify(userProvider).addUser(realmModel, FEDERATED_USER_KNOWN_USERNAME);
+        verify(auditLog).notFound(realmModel, "gone@smartling.com");
+        verify(federatedUserService, never()).getUserDetails(anyString());
+    }
+
+    @Test
+    public void testImportUsersSkipsUsersImportedElsewhere() throws Exception {
+        UserLookupState lookupState = mock(UserLookupState.class);
+        when(lookupState.tryBeginMigration(FEDERATED_USER_KNOWN_USERNAME)).thenReturn(false);
+        when(federatedUserService.getUserDetailsBatch(Arrays.asList(FEDERATED_USER_KNOWN_USERNAME))).thenReturn(Arrays.asList(federatedUserModel));
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, lookupState);
+
+        assertEquals(0, provider.importUsers(realmModel, Arrays.asList(FEDERATED_USER_KNOWN_USERNAME)).getAdded());
+        verify(lookupState, times(1)).tryBeginMigration(FEDERATED_USER_KNOWN_USERNAME);
+        verify(userProvider, never()).addUser(any(RealmModel.class), anyString());
+    }
+
+    @Test
+    public void testImportUsersSkipsLocalUsers() throws Exception {
+        assertEquals(0, provider.importUsers(realmModel, Arrays.asList(KEYCLOAK_EXISTING_USER_USERNAME)).getAdded());
+        verifyZeroInteractions(federatedUserService);
+    }
+
     @Test
     public void testValidCredentialsVarArg() throws Exception {
         assertTrue(provider.isValid(realmModel, userModel, UserCredentialModel.password(FEDERATED_USER_KNOWN_PASSWORD)));
     }
 
 
+    @Test
+    public void testIsValidClosesResponses() throws Exception {
+        Response exists = spy(Response.ok().build());
+        Response login = spy(Response.status(Status.FORBIDDEN).build());
+        when(federatedUserService.validateUserExists(FEDERATED_USER_KNOWN_USERNAME)).thenReturn(exists);
+        when(federatedUserService.validateLogin(eq(FEDERATED_USER_KNOWN_USERNAME), any(UserCredentialsDto.class))).thenReturn(login);
+
+        assertFalse(provider.isValid(realmModel, userModel, UserCredentialModel.password(FEDERATED_USER_KNOWN_PASSWORD)));
+        verify(exists).close();
+        verify(login).close();
+    }
+
     @Test
     public void testValidCredentialsListInvalid() throws Exception {
         assertFalse(provider.isValid(realmModel, userModel, UserCredentialModel.password(UUID.randomUUID().toString())));
     }
 
+    private RemoteUserFederationProvider refreshingProvider() {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(RemoteUserFederationProviderConfig.REFRESH_INTERVAL, "60");
+        when(userStorageProviderModel.getConfig()).thenReturn(config);
+        when(userStorageProviderModel.getId()).thenReturn("component");
+        when(userModel.getFederationLink()).thenReturn("component");
+        return new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, UserLookupState.NONE);
+    }
+
+    private static FederatedUserModel legacyUser(String email) {
+        FederatedUserModel user = new FederatedUserModel();
+        user.setEmail(email);
+        return user;
+    }
+
+    private RemoteUserFederationProvider drainingProvider() {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(RemoteUserFederationProviderConfig.DRAIN_MODE, "true");
+        config.putSingle(RemoteUserFederationProviderConfig.REFRESH_INTERVAL, "60");
+        when(userStorageProviderModel.getConfig()).thenReturn(config);
+        when(userStorageProviderModel.getId()).thenReturn("component");
+        when(userModel.getFederationLink()).thenReturn("component");
+        return new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService, UserLookupState.NONE);
+    }
+
+    @Test
+    public void testDrainModeSkipsLegacyLookups() throws Exception {
+        RemoteUserFederationProvider provider = drainingProvider();
+
+        assertNull(provider.getUserByUsername(FEDERATED_USER_KNOWN_USERNAME, realmModel));
+        assertNull(provider.getUserByEmail(FEDERATED_USER_KNOWN_EMAIL, realmModel));
+        assertEquals(0, provider.getUsersCount(realmModel));
+        assertTrue(provider.searchForUser(FEDERATED_USER_KNOWN_USERNAME, realmModel).isEmpty());
+        assertSame(userModel, provider.validate(realmModel, userModel));
+
+        verifyZeroInteractions(federatedUserService);
+        verify(userProvider, never()).addUser(any(RealmModel.class), anyString());
+    }
+
+    @Test
+    public void testDrainModeStillMigratesLinkedUsers() throws Exception {
+        RemoteUserFederationProvider provider = drainingProvider();
+        UserCredentialManager credentialManager = mock(UserCredentialManager.class);
+        when(keycloakSession.userCredentialManager()).thenReturn(credentialManager);
+        when(federatedUserService.validateUserExists(eq(FEDERATED_USER_KNOWN_USERNAME))).thenReturn(Response.ok().build());
+        when(federatedUserService.validateLogin(eq(FEDERATED_USER_KNOWN_USERNAME), any(UserCredentialsDto.class))).thenReturn(Response.ok().build());
+
+        assertTrue(provider.isValid(realmModel, userModel, UserCredentialModel.password(FEDERATED_USER_KNOWN_PASSWORD)));
+        verify(federatedUserService).validateLogin(eq(FEDERATED_USER_KNOWN_USERNAME), any(UserCredentialsDto.class));
+        verify(userModel).setFederationLink(null);
+    }
+
     @Test
     public void testClose() throws Exception {
         provider.close();
         verifyZeroInteractions(keycloakSession, realmModel, federatedUserService);
     }
+
+    @Test
+    public void testCloseClosesResourcesItBuilt() throws Exception {
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, "http://localhost:1");
+        assertFalse(provider.getResources().isClosed());
+
+        provider.close();
+        assertTrue(provider.getResources().isClosed());
+    }
+
+    @Test
+    public void testCloseKeepsResourcesItWasGiven() throws Exception {
+        ComponentResources resources = ComponentResources.standalone(userStorageProviderModel);
+        provider = new RemoteUserFederationProvider(keycloakSession, userStorageProviderModel, federatedUserService,
+                UserLookupState.NONE, resources);
+
+        provider.close();
+        assertFalse(resources.isClosed());
+    }
 }
\ No newline at end of file
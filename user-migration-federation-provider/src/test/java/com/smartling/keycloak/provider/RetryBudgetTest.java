@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Retry budget test cases.
+ */
+public class RetryBudgetTest {
+
+    private long now = TimeUnit.HOURS.toNanos(1);
+
+    private final RetryBudget budget = new RetryBudget(10) {
+        @Override
+        protected long nanoTime() {
+            return now;
+        }
+    };
+
+    @Test
+    public void testMinimumRetriesAlwaysAllowed() throws Exception {
+        for (int i = 0; i < RetryBudget.MIN_RETRIES_PER_WINDOW; i++) {
+            assertTrue(budget.tryRetry());
+        }
+        assertFalse(budget.tryRetry());
+    }
+
+    @Test
+    public void testRetriesScaleWithRequests() throws Exception {
+        for (int i = 0; i < 1000; i++) budget.recordRequest();
+
+        int retries = 0;
+        while (budget.tryRetry()) retries++;
+        assertEquals(100, retries);
+    }
+
+    @Test
+    public void testBudgetRecoversAfterWindow() throws Exception {
+        while (budget.tryRetry()) {
+            // spend the budget
+        }
+
+        now += TimeUnit.SECONDS.toNanos(RetryBudget.WINDOW_SECONDS);
+        assertTrue(budget.tryRetry());
+    }
+
+    @Test
+    public void testZeroPercentNeverRetries() throws Exception {
+        assertFalse(new RetryBudget(0).tryRetry());
+    }
+}
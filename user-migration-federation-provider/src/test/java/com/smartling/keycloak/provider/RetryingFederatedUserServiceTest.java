@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import com.smartling.keycloak.federation.FederatedUserService;
+import com.smartling.keycloak.federation.UserCredentialsDto;
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.Test;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Retrying federated user service test cases.
+ */
+public class RetryingFederatedUserServiceTest {
+
+    private static final String USERNAME = "wa+user@smartling.com";
+
+    private final FederatedUserService delegate = mock(FederatedUserService.class);
+    private final RetryingFederatedUserService service = new RetryingFederatedUserService(delegate, new RetryBudget(10), 2, 1, 5);
+
+    @Test
+    public void testConnectionFailureIsRetried() throws Exception {
+        FederatedUserModel user = new FederatedUserModel();
+        when(delegate.getUserDetails(USERNAME)).thenThrow(new ProcessingException(new SocketException("Connection reset"))).thenReturn(user);
+
+        assertSame(user, service.getUserDetails(USERNAME));
+        verify(delegate, times(2)).getUserDetails(USERNAME);
+    }
+
+    @Test
+    public void testReadTimeoutIsRetried() throws Exception {
+        FederatedUserModel user = new FederatedUserModel();
+        when(delegate.getUserDetails(USERNAME)).thenThrow(new ProcessingException(new SocketTimeoutException("Read timed out"))).thenReturn(user);
+
+        assertSame(user, service.getUserDetails(USERNAME));
+        verify(delegate, times(2)).getUserDetails(USERNAME);
+    }
+
+    @Test(expected = ProcessingException.class)
+    public void testUnreadableEntityIsNotRetried() throws Exception {
+        when(delegate.getUserDetails(USERNAME)).thenThrow(new ProcessingException(new JsonParseException("Unexpected character", null)));
+
+        try {
+            service.getUserDetails(USERNAME);
+        } finally {
+            verify(delegate, times(1)).getUserDetails(USERNAME);
+        }
+    }
+
+    @Test(expected = LegacyHostBudget.RejectedException.class)
+    public void testBudgetRejectionIsNotRetried() throws Exception {
+        when(delegate.validateUserExists(USERNAME)).thenThrow(new LegacyHostBudget.RejectedException("Too many concurrent calls"));
+
+        try {
+            service.validateUserExists(USERNAME);
+        } finally {
+            verify(delegate, times(1)).validateUserExists(USERNAME);
+        }
+    }
+
+    @Test
+    public void testUnavailableResponseIsRetriedAndClosed() throws Exception {
+        Response unavailable = spy(Response.status(Status.SERVICE_UNAVAILABLE).build());
+        when(delegate.validateUserExists(USERNAME)).thenReturn(unavailable, Response.ok().build());
+
+        assertEquals(Status.OK.getStatusCode(), service.validateUserExists(USERNAME).getStatus());
+        verify(unavailable).close();
+    }
+
+    @Test
+    public void testRetriesAreLimited() throws Exception {
+        when(delegate.getUserDetails(USERNAME)).thenThrow(new ServiceUnavailableException());
+
+        try {
+            service.getUserDetails(USERNAME);
+            fail("expected ServiceUnavailableException");
+        } catch (ServiceUnavailableException ex) {
+            verify(delegate, times(3)).getUserDetails(USERNAME);
+        }
+    }
+
+    @Test
+    public void testLastTransientResponseIsReturned() throws Exception {
+        when(delegate.validateUserExists(USERNAME)).thenReturn(Response.status(Status.SERVICE_UNAVAILABLE).build());
+
+        assertEquals(Status.SERVICE_UNAVAILABLE.getStatusCode(), service.validateUserExists(USERNAME).getStatus());
+        verify(delegate, times(3)).validateUserExists(USERNAME);
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testNotFoundIsNotRetried() throws Exception {
+        when(delegate.getUserDetails(USERNAME)).thenThrow(new NotFoundException());
+
+        try {
+            service.getUserDetails(USERNAME);
+        } finally {
+            verify(delegate, times(1)).getUserDetails(USERNAME);
+        }
+    }
+
+    @Test(expected = ProcessingException.class)
+    public void testValidateLoginIsNeverRetried() throws Exception {
+        UserCredentialsDto credentials = new UserCredentialsDto("secret");
+        when(delegate.validateLogin(USERNAME, credentials)).thenThrow(new ProcessingException("Connection reset"));
+
+        try {
+            service.validateLogin(USERNAME, credentials);
+        } finally {
+            verify(delegate, times(1)).validateLogin(USERNAME, credentials);
+        }
+    }
+
+    @Test
+    public void testSpentBudgetStopsRetries() throws Exception {
+        RetryingFederatedUserService unbudgeted = new RetryingFederatedUserService(delegate, new RetryBudget(0), 2, 1, 5);
+        when(delegate.validateUserExists(USERNAME)).thenReturn(Response.status(Status.BAD_GATEWAY).build());
+
+        assertEquals(Status.BAD_GATEWAY.getStatusCode(), unbudgeted.validateUserExists(USERNAME).getStatus());
+        verify(delegate, times(1)).validateUserExists(USERNAME);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import com.smartling.keycloak.federation.FederatedUserModel;
+import com.smartling.keycloak.federation.FederatedUserService;
+import com.smartling.keycloak.federation.UserCredentialsDto;
+
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory legacy API that answers every call after a fixed latency and
+ * fails a share of them the way an overloaded legacy system would: lookups
+ * with 503s, password checks and batches with connection errors.
+ */
+public class StubFederatedUserService implements FederatedUserService {
+
+    private final Map<String, FederatedUserModel> users = new ConcurrentHashMap<>();
+    private final Map<String, String> passwords = new ConcurrentHashMap<>();
+    private final long latencyMillis;
+    private final double faultRate;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong faults = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final Map<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+
+    public StubFederatedUserService(long latencyMillis, double faultRate) {
+        this.latencyMillis = latencyMillis;
+        this.faultRate = faultRate;
+    }
+
+    public void addUser(String username, String password) {
+        FederatedUserModel user = new FederatedUserModel();
+        user.setUsername(username);
+        user.setEmail(username);
+        user.setEnabled(true);
+        user.setFirstName("First " + username);
+        user.setLastName("Last " + username);
+        user.setVersion("1");
+        users.put(username, user);
+        passwords.put(username, password);
+    }
+
+    /**
+     * Returns the number of calls received, including failed ones.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getFaults() {
+        return faults.get();
+    }
+
+    /**
+     * Returns the highest number of calls that were in progress at the same time.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * Returns the number of answered {@link #getUserDetails(String)} calls for the user.
+     */
+    public int getLookups(String username) {
+        AtomicInteger count = lookups.get(username);
+        return count != null ? count.get() : 0;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    @Override
+    public FederatedUserModel getUserDetails(String username) {
+        if (call()) throw new ServiceUnavailableException();
+
+        AtomicInteger count = lookups.get(username);
+        if (count == null) {
+            AtomicInteger first = new AtomicInteger();
+            count = lookups.putIfAbsent(username, first);
+            if (count == null) count = first;
+        }
+        count.incrementAndGet();
+
+        FederatedUserModel user = users.get(username);
+        if (user == null) throw new NotFoundException();
+        return user;
+    }
+
+    @Override
+    public Response getUserDetailsIfChanged(String username, String version) {
+        if (call()) return Response.status(Status.SERVICE_UNAVAILABLE).build();
+
+        FederatedUserModel user = users.get(username);
+        if (user == null) return Response.status(Status.NOT_FOUND).build();
+
+        EntityTag etag = new EntityTag(user.getVersion());
+        if (etag.toString().equals(version)) return Response.notModified(etag).build();
+        return Response.ok(user).tag(etag).build();
+    }
+
+    @Override
+    public List<FederatedUserModel> getUserDetailsBatch(List<String> usernames) {
+        if (call()) throw new ProcessingException("Connection reset");
+
+        List<FederatedUserModel> found = new ArrayList<>();
+        for (String username : usernames) {
+            FederatedUserModel user = users.get(username);
+            if (user != null) found.add(user);
+        }
+        return found;
+    }
+
+    @Override
+    public Response validateUserExists(String username) {
+        if (call()) return Response.status(Status.SERVICE_UNAVAILABLE).build();
+
+        return Response.status(users.containsKey(username) ? Status.OK : Status.NOT_FOUND).build();
+    }
+
+    @Override
+    public Response validateLogin(String username, UserCredentialsDto passwordDto) {
+        if (call()) throw new ProcessingException("Connection reset");
+
+        String password = passwords.get(username);
+        boolean valid = password != null && passwordDto != null && password.equals(passwordDto.getPassword());
+        return Response.status(valid ? Status.OK : Status.UNAUTHORIZED).build();
+    }
+
+    @Override
+    public List<FederatedUserModel> searchUsers(String search, int first, int max) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response countUsers(String search) {
+        throw new UnsupportedOperationException();
+    }
+
+    // Waits out the latency and returns true if the call should fail
+    private boolean call() {
+        calls.incrementAndGet();
+        int current = inFlight.incrementAndGet();
+        int max;
+        while (current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current)) {
+            // lost the race to another call; re-read
+        }
+
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException(ex);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+
+        if (ThreadLocalRandom.current().nextDouble() >= faultRate) return false;
+        faults.incrementAndGet();
+        return true;
+    }
+}
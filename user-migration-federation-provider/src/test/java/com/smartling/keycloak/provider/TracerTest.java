@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Smartling, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smartling.keycloak.provider;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tracer test cases.
+ */
+public class TracerTest {
+
+    private static final String REMOTE_TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+    private static final String REMOTE_SPAN_ID = "00f067aa0ba902b7";
+
+    private final List<Span> exported = new ArrayList<>();
+
+    private Tracer tracer;
+
+    @Before
+    public void setUp() throws Exception {
+        tracer = new Tracer(new SpanExporter() {
+            @Override
+            public void export(Span span) {
+                exported.add(span);
+            }
+
+            @Override
+            public void close() {
+                // no-op
+            }
+        });
+    }
+
+    @Test
+    public void testChildSpanSharesTrace() throws Exception {
+        Span parent = tracer.start("parent");
+        Span child = tracer.start("child");
+        assertSame(child, tracer.current());
+
+        child.end();
+        assertSame(parent, tracer.current());
+        parent.end();
+        assertNull(tracer.current());
+
+        assertEquals(2, exported.size());
+        assertEquals(parent.getTraceId(), child.getTraceId());
+        assertEquals(parent.getSpanId(), child.getParentSpanId());
+        assertNull(parent.getParentSpanId());
+    }
+
+    @Test
+    public void testContinuesRemoteTrace() throws Exception {
+        Span span = tracer.start("root", "00-" + REMOTE_TRACE_ID + "-" + REMOTE_SPAN_ID + "-01");
+        span.end();
+
+        assertEquals(REMOTE_TRACE_ID, span.getTraceId());
+        assertEquals(REMOTE_SPAN_ID, span.getParentSpanId());
+        assertTrue(span.getTraceParent().startsWith("00-" + REMOTE_TRACE_ID + "-"));
+    }
+
+    @Test
+    public void testIgnoresInvalidRemoteTrace() throws Exception {
+        Span span = tracer.start("root", "garbage");
+        span.end();
+
+        assertNull(span.getParentSpanId());
+        assertEquals(32, span.getTraceId().length());
+    }
+
+    @Test
+    public void testDisabledTracerRecordsNothing() throws Exception {
+        Span span = Tracer.DISABLED.start("ignored");
+        span.setAttribute("key", "value").end();
+
+        assertSame(Span.NOOP, span);
+        assertNull(Tracer.DISABLED.current());
+    }
+
+    @Test
+    public void testHashUsernameIsStableAndOpaque() throws Exception {
+        String hash = Tracer.hashUsername("wa+user@smartling.com", "secret");
+        assertEquals(hash, Tracer.hashUsername("wa+user@smartling.com", "secret"));
+        assertFalse(hash.contains("smartling"));
+    }
+
+    @Test
+    public void testHashUsernameIsKeyedWithSecret() throws Exception {
+        assertNotEquals(Tracer.hashUsername("wa+user@smartling.com", "secret"), Tracer.hashUsername("wa+user@smartling.com", "other"));
+        assertNull(Tracer.hashUsername("wa+user@smartling.com", null));
+    }
+
+    @Test
+    public void testToJson() throws Exception {
+        Span span = tracer.start("quoted \"name\"").setAttribute("user.hash", "abc");
+        span.end();
+
+        String json = span.toJson();
+        assertTrue(json.contains("\"name\":\"quoted \\\"name\\\"\""));
+        assertTrue(json.contains("\"user.hash\":\"abc\""));
+        assertTrue(json.contains("\"code\":\"OK\""));
+    }
+}
@@ -35,6 +35,7 @@ public class FederatedUserModel implements Serializable
     private String lastName;
     private Map<String,List<String>> attributes;
     private Set<String> roles;
+    private String version;
 
     public String getUsername()
     {
@@ -114,4 +115,16 @@ public class FederatedUserModel implements Serializable
         this.roles = roles;
     }
 
+    /**
+     * Opaque version of this user in the legacy system, changing whenever any
+     * of its details change; used as the entity tag for conditional requests.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
 }
@@ -18,12 +18,16 @@ package com.smartling.keycloak.federation;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.HEAD;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.List;
 
 /**
  * Federated user service.
@@ -34,10 +38,38 @@ import javax.ws.rs.core.Response;
 @Produces(MediaType.APPLICATION_JSON)
 public interface FederatedUserService
 {
+    /**
+     * Response header carrying the number of users matching a search.
+     */
+    String TOTAL_COUNT_HEADER = "X-Total-Count";
+
+    /**
+     * Binary JSON encoding a client may ask for instead of plain JSON.
+     */
+    String APPLICATION_CBOR = "application/cbor";
+
     @GET
     @Path("/api/users/{username}/")
     FederatedUserModel getUserDetails(@PathParam("username") String username);
 
+    /**
+     * Conditionally fetches a user. Answers 304 Not Modified without a body if
+     * the user's current version matches {@code version}, otherwise 200 with
+     * the {@link FederatedUserModel} and its version as the ETag.
+     */
+    @GET
+    @Path("/api/users/{username}/")
+    Response getUserDetailsIfChanged(@PathParam("username") String username,
+                                     @HeaderParam(HttpHeaders.IF_NONE_MATCH) String version);
+
+    /**
+     * Fetches many users in one request. Users unknown to the legacy system
+     * are left out of the result.
+     */
+    @POST
+    @Path("/api/users/_batch/")
+    List<FederatedUserModel> getUserDetailsBatch(List<String> usernames);
+
     @HEAD
     @Path("/api/users/{username}/")
     Response validateUserExists(@PathParam("username") String username);
@@ -45,4 +77,22 @@ public interface FederatedUserService
     @POST
     @Path("/api/users/{username}/")
     Response validateLogin(@PathParam("username") String username, UserCredentialsDto passwordDto);
+
+    /**
+     * Returns one page of users whose username, email or name contains the
+     * search string, ordered by username. A null search matches all users.
+     */
+    @GET
+    @Path("/api/users/")
+    List<FederatedUserModel> searchUsers(@QueryParam("search") String search,
+                                         @QueryParam("first") int first,
+                                         @QueryParam("max") int max);
+
+    /**
+     * Counts the users matching a search; the count is returned in the
+     * {@value #TOTAL_COUNT_HEADER} header.
+     */
+    @HEAD
+    @Path("/api/users/")
+    Response countUsers(@QueryParam("search") String search);
 }